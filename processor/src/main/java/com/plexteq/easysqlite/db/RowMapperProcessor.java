@@ -0,0 +1,277 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor generating row mapper factories for classes
+ * annotated with {@link RowMapped}. Generated factory assigns fields
+ * directly, so mapping involves no reflection at all. Processor is
+ * shipped as separate artifact registered as a service, so it runs
+ * when added to annotation processor path and stays out of the app
+ */
+public class RowMapperProcessor extends AbstractProcessor
+{
+	/**
+	 * Cursor getters by field type
+	 */
+	private static final Map<String, String> GETTERS = new HashMap<String, String>();
+	
+	static {
+		GETTERS.put("java.lang.String", "getString");
+		GETTERS.put("int", "getInt");
+		GETTERS.put("java.lang.Integer", "getInt");
+		GETTERS.put("long", "getLong");
+		GETTERS.put("java.lang.Long", "getLong");
+		GETTERS.put("short", "getShort");
+		GETTERS.put("java.lang.Short", "getShort");
+		GETTERS.put("double", "getDouble");
+		GETTERS.put("java.lang.Double", "getDouble");
+		GETTERS.put("float", "getFloat");
+		GETTERS.put("java.lang.Float", "getFloat");
+		GETTERS.put("boolean", "getInt");
+		GETTERS.put("java.lang.Boolean", "getInt");
+		GETTERS.put("byte[]", "getBlob");
+	}
+	
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return Collections.singleton(RowMapped.class.getCanonicalName());
+	}
+	
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+	
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		for (Element element : roundEnv.getElementsAnnotatedWith(RowMapped.class))
+		{
+			TypeElement type = (TypeElement) element;
+			if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+				error(type, "@RowMapped types must be concrete classes");
+				continue;
+			}
+			if (type.getNestingKind() == NestingKind.MEMBER && type.getModifiers().contains(Modifier.STATIC) == false) {
+				error(type, "@RowMapped inner classes must be static");
+				continue;
+			}
+			if (isAccessible(type) == false) {
+				error(type, "@RowMapped classes and classes enclosing them must be neither private nor protected");
+				continue;
+			}
+			if (hasDefaultConstructor(type) == false) {
+				error(type, "@RowMapped classes must have a non private constructor without parameters");
+				continue;
+			}
+			
+			try {
+				generateFactory(type);
+			} catch (IOException e) {
+				error(type, "Error generating row mapper factory: " + e.getMessage());
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Generated factory is a top level class in package of mapped
+	 * class, so the class has to be reachable from that package
+	 */
+	private boolean isAccessible(TypeElement type)
+	{
+		for (Element current = type ; current != null && current.getKind() != ElementKind.PACKAGE ;
+				current = current.getEnclosingElement()) {
+			Set<Modifier> modifiers = current.getModifiers();
+			if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.PROTECTED))
+				return false;
+		}
+		return true;
+	}
+	
+	private boolean hasDefaultConstructor(TypeElement type)
+	{
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements()))
+			if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PRIVATE) == false)
+				return true;
+		return false;
+	}
+	
+	private void generateFactory(TypeElement type) throws IOException
+	{
+		String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String factoryName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1)
+				+ RowMappers.GENERATED_FACTORY_SUFFIX;
+		String typeName = type.getQualifiedName().toString();
+		
+		List<VariableElement> fields = getMappedFields(type);
+		
+		StringBuilder code = new StringBuilder();
+		if (packageName.isEmpty() == false)
+			code.append("package ").append(packageName).append(";\n\n");
+		
+		code.append("public final class ").append(factoryName)
+			.append(" implements com.plexteq.easysqlite.db.RowMapperFactory<").append(typeName).append(">\n{\n")
+			.append("\t@Override\n")
+			.append("\tpublic com.plexteq.easysqlite.db.RowMapper<").append(typeName).append("> bind(String[] columnNames)\n\t{\n")
+			.append("\t\tfinal int[] indexes = new int[").append(fields.size()).append("];\n")
+			.append("\t\tjava.util.Arrays.fill(indexes, -1);\n\n")
+			.append("\t\tfor (int i = 0 ; i < columnNames.length ; i++) {\n")
+			.append("\t\t\tString column = columnNames[i];\n");
+		
+		for (int i = 0 ; i < fields.size() ; i++) {
+			code.append(i == 0 ? "\t\t\tif" : "\t\t\telse if")
+				.append(" (\"").append(getColumnName(fields.get(i)).replace("\\", "\\\\").replace("\"", "\\\"")).append("\".equals(column))\n")
+				.append("\t\t\t\tindexes[").append(i).append("] = i;\n");
+		}
+		
+		code.append("\t\t}\n\n")
+			.append("\t\treturn new com.plexteq.easysqlite.db.RowMapper<").append(typeName).append(">()\n\t\t{\n")
+			.append("\t\t\t@Override\n")
+			.append("\t\t\tpublic ").append(typeName).append(" mapRow(android.database.Cursor cursor)\n\t\t\t{\n")
+			.append("\t\t\t\t").append(typeName).append(" row = new ").append(typeName).append("();\n");
+		
+		for (int i = 0 ; i < fields.size() ; i++)
+		{
+			VariableElement field = fields.get(i);
+			String fieldType = field.asType().toString();
+			String value = "cursor." + GETTERS.get(fieldType) + "(indexes[" + i + "])";
+			if (fieldType.endsWith("oolean"))
+				value += " != 0";
+			
+			// NULL leaves primitive at its default value and sets
+			// other fields to null, like reflection based mapper
+			if (field.asType().getKind().isPrimitive()) {
+				code.append("\t\t\t\tif (indexes[").append(i).append("] >= 0 && cursor.isNull(indexes[").append(i).append("]) == false)\n")
+					.append("\t\t\t\t\trow.").append(field.getSimpleName()).append(" = ").append(value).append(";\n");
+			} else {
+				code.append("\t\t\t\tif (indexes[").append(i).append("] >= 0)\n")
+					.append("\t\t\t\t\trow.").append(field.getSimpleName()).append(" = cursor.isNull(indexes[").append(i)
+					.append("]) ? null : ").append(value).append(";\n");
+			}
+		}
+		
+		code.append("\t\t\t\treturn row;\n")
+			.append("\t\t\t}\n")
+			.append("\t\t};\n")
+			.append("\t}\n")
+			.append("}\n");
+		
+		String sourceName = packageName.isEmpty() ? factoryName : packageName + "." + factoryName;
+		Writer writer = processingEnv.getFiler().createSourceFile(sourceName, type).openWriter();
+		try {
+			writer.write(code.toString());
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Collects fields of supported types, including inherited ones.
+	 * Generated factory is in package of mapped class, so inherited
+	 * fields declared in another package must be public
+	 */
+	private List<VariableElement> getMappedFields(TypeElement type)
+	{
+		List<VariableElement> result = new ArrayList<VariableElement>();
+		Set<String> columns = new HashSet<String>();
+		Elements elements = processingEnv.getElementUtils();
+		PackageElement typePackage = elements.getPackageOf(type);
+		
+		for (Element current = type ; current != null && current.getKind() == ElementKind.CLASS ;
+				current = processingEnv.getTypeUtils().asElement(((TypeElement) current).getSuperclass()))
+		{
+			for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements()))
+			{
+				Set<Modifier> modifiers = field.getModifiers();
+				if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)
+						|| GETTERS.containsKey(field.asType().toString()) == false)
+					continue;
+				
+				if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+					error(field, "Fields mapped by generated row mapper must be neither private nor final");
+					continue;
+				}
+				if (modifiers.contains(Modifier.PUBLIC) == false && elements.getPackageOf(current).equals(typePackage) == false) {
+					// superclass may come from a library, so error is reported on mapped class
+					error(type, "Field " + field.getSimpleName() + " of " + ((TypeElement) current).getQualifiedName()
+							+ " is declared in another package, it must be public to be mapped by generated row mapper");
+					continue;
+				}
+				
+				// fields of subclass take precedence over hidden ones
+				if (columns.add(getColumnName(field)))
+					result.add(field);
+			}
+		}
+		
+		return result;
+	}
+	
+	private String getColumnName(VariableElement field)
+	{
+		Column column = field.getAnnotation(Column.class);
+		return column != null ? column.value() : field.getSimpleName().toString();
+	}
+	
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
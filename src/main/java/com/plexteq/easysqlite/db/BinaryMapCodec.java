@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Base64;
+
+/**
+ * Encodes maps in compact length-prefixed binary form, deflating
+ * payloads above threshold. Binary form is Base64 encoded to fit
+ * TEXT columns, so it never starts with '{' and can be told apart
+ * from JSON. Layout is a version byte followed by varint entry count
+ * and entries, each being varint key length, UTF-8 key, varint value
+ * length + 1 (0 for null) and UTF-8 value. Deflated payload is a
+ * version byte followed by varint raw length and deflated raw layout
+ */
+public class BinaryMapCodec implements MapCodec
+{
+	public static final int VERSION_RAW = 1;
+	public static final int VERSION_DEFLATED = 2;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * Buffers and compressors reused by encoding and decoding
+	 * of the same thread
+	 */
+	private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>()
+	{
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+	
+	/**
+	 * Minimal size of raw payload to deflate, not positive disables compression
+	 */
+	private final int compressionThreshold;
+	
+	public BinaryMapCodec() {
+		this(256);
+	}
+	
+	public BinaryMapCodec(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	@Override
+	public String encode(Map<String, String> map)
+	{
+		Buffers buffers = BinaryMapCodec.buffers.get();
+		
+		ByteBuffer raw = buffers.raw;
+		raw.length = 0;
+		raw.write(VERSION_RAW);
+		raw.writeVarint(map.size());
+		
+		for (Entry<String, String> entry : map.entrySet()) {
+			raw.writeString(entry.getKey(), false);
+			raw.writeString(entry.getValue(), true);
+		}
+		
+		if (compressionThreshold <= 0 || raw.length < compressionThreshold)
+			return Base64.encodeToString(raw.data, 0, raw.length, Base64.NO_WRAP);
+		
+		ByteBuffer deflated = buffers.deflated;
+		deflated.length = 0;
+		deflated.write(VERSION_DEFLATED);
+		deflated.writeVarint(raw.length - 1);
+		
+		Deflater deflater = buffers.deflater;
+		deflater.reset();
+		deflater.setInput(raw.data, 1, raw.length - 1);
+		deflater.finish();
+		while (deflater.finished() == false) {
+			deflated.ensureCapacity(deflated.length + 512);
+			deflated.length += deflater.deflate(deflated.data, deflated.length, deflated.data.length - deflated.length);
+		}
+		
+		// incompressible payloads are kept raw
+		ByteBuffer result = deflated.length < raw.length ? deflated : raw;
+		return Base64.encodeToString(result.data, 0, result.length, Base64.NO_WRAP);
+	}
+	
+	@Override
+	public Map<String, String> decode(String value)
+	{
+		byte[] data = Base64.decode(value, Base64.NO_WRAP);
+		if (data.length == 0)
+			throw new IllegalArgumentException("Empty binary map");
+		
+		int[] position = { 1 };
+		switch (data[0])
+		{
+			case VERSION_RAW:
+				return readEntries(data, position, data.length);
+				
+			case VERSION_DEFLATED:
+				int rawLength = readVarint(data, position);
+				ByteBuffer raw = buffers.get().raw;
+				raw.ensureCapacity(rawLength);
+				
+				Inflater inflater = buffers.get().inflater;
+				inflater.reset();
+				inflater.setInput(data, position[0], data.length - position[0]);
+				try {
+					if (inflater.inflate(raw.data, 0, rawLength) != rawLength)
+						throw new IllegalArgumentException("Truncated deflated map");
+				} catch (DataFormatException e) {
+					throw new IllegalArgumentException("Malformed deflated map", e);
+				}
+				
+				position[0] = 0;
+				return readEntries(raw.data, position, rawLength);
+				
+			default:
+				throw new IllegalArgumentException("Unsupported binary map version " + data[0]);
+		}
+	}
+	
+	private static Map<String, String> readEntries(byte[] data, int[] position, int end)
+	{
+		int size = readVarint(data, position);
+		Map<String, String> result = new HashMap<String, String>(size * 4 / 3 + 1);
+		
+		for (int i = 0 ; i < size ; i++) {
+			String key = readString(data, position, end, false);
+			result.put(key, readString(data, position, end, true));
+		}
+		
+		return result;
+	}
+	
+	private static String readString(byte[] data, int[] position, int end, boolean nullable)
+	{
+		int length = readVarint(data, position);
+		if (nullable) {
+			if (length == 0)
+				return null;
+			length--;
+		}
+		
+		if (length < 0 || position[0] + length > end)
+			throw new IllegalArgumentException("Truncated binary map");
+		
+		String result = new String(data, position[0], length, UTF8);
+		position[0] += length;
+		return result;
+	}
+	
+	private static int readVarint(byte[] data, int[] position)
+	{
+		int result = 0;
+		for (int shift = 0 ; shift < 32 ; shift += 7)
+		{
+			if (position[0] >= data.length)
+				throw new IllegalArgumentException("Truncated binary map");
+			
+			byte b = data[position[0]++];
+			result |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+		throw new IllegalArgumentException("Malformed varint in binary map");
+	}
+	
+	private static class Buffers
+	{
+		private final ByteBuffer raw = new ByteBuffer();
+		private final ByteBuffer deflated = new ByteBuffer();
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private final Inflater inflater = new Inflater(true);
+	}
+	
+	/**
+	 * Growable byte array writing UTF-8 directly, so
+	 * encoding doesn't allocate intermediate arrays
+	 */
+	private static class ByteBuffer
+	{
+		private byte[] data = new byte[1024];
+		private int length;
+		
+		private void ensureCapacity(int capacity)
+		{
+			if (capacity > data.length) {
+				byte[] grown = new byte[Math.max(capacity, data.length * 2)];
+				System.arraycopy(data, 0, grown, 0, length);
+				data = grown;
+			}
+		}
+		
+		private void write(int b) {
+			ensureCapacity(length + 1);
+			data[length++] = (byte) b;
+		}
+		
+		private void writeVarint(int value)
+		{
+			ensureCapacity(length + 5);
+			while ((value & ~0x7f) != 0) {
+				data[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte) value;
+		}
+		
+		private void writeString(String value, boolean nullable)
+		{
+			if (value == null) {
+				if (nullable == false)
+					throw new IllegalArgumentException("Null keys aren't supported");
+				writeVarint(0);
+				return;
+			}
+			
+			int size = getUtf8Length(value);
+			writeVarint(nullable ? size + 1 : size);
+			ensureCapacity(length + size);
+			
+			for (int i = 0 ; i < value.length() ; i++)
+			{
+				char c = value.charAt(i);
+				if (c < 0x80) {
+					data[length++] = (byte) c;
+				} else if (c < 0x800) {
+					data[length++] = (byte) (0xc0 | (c >> 6));
+					data[length++] = (byte) (0x80 | (c & 0x3f));
+				} else if (isSurrogatePair(value, i)) {
+					int codePoint = Character.toCodePoint(c, value.charAt(++i));
+					data[length++] = (byte) (0xf0 | (codePoint >> 18));
+					data[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+					data[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+					data[length++] = (byte) (0x80 | (codePoint & 0x3f));
+				} else if (isSurrogate(c)) {
+					// unpaired surrogate, replaced the same way String.getBytes does
+					data[length++] = '?';
+				} else {
+					data[length++] = (byte) (0xe0 | (c >> 12));
+					data[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					data[length++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+		}
+		
+		private static int getUtf8Length(String value)
+		{
+			int size = 0;
+			for (int i = 0 ; i < value.length() ; i++)
+			{
+				char c = value.charAt(i);
+				if (c < 0x80)
+					size++;
+				else if (c < 0x800)
+					size += 2;
+				else if (isSurrogatePair(value, i)) {
+					size += 4;
+					i++;
+				} else if (isSurrogate(c))
+					size++;
+				else
+					size += 3;
+			}
+			return size;
+		}
+		
+		private static boolean isSurrogate(char c) {
+			return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+		}
+		
+		private static boolean isSurrogatePair(String value, int index) {
+			return Character.isHighSurrogate(value.charAt(index)) && index + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(index + 1));
+		}
+	}
+}
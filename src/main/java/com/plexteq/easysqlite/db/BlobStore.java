@@ -0,0 +1,462 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import static com.plexteq.easysqlite.db.DatabaseHelper.quoteIdentifier;
+import static com.plexteq.easysqlite.db.DatabaseHelper.toSqlLiteral;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Streams blob cells, addressed by table, column and rowid, in chunks
+ * small enough to fit into CursorWindow. Payloads above threshold are
+ * kept in side files next to the database, row holds only a reference
+ * to the file. Side files are registered in a table, so files left
+ * after rows were deleted by SQL can be removed later
+ */
+public class BlobStore
+{
+	/**
+	 * Table of side files and cells referencing them
+	 */
+	public static final String FILES_TABLE = "easysqlite_blobs";
+	
+	/**
+	 * Prefix of text value referencing side file
+	 */
+	public static final String FILE_REFERENCE_PREFIX = "easysqlite-blob:";
+	
+	/**
+	 * Files younger than that may belong to writes in progress
+	 */
+	private static final long UNREFERENCED_FILE_MIN_AGE = 10 * 60 * 1000;
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final SqliteDatasourceProviderImpl provider;
+	private final File directory;
+	
+	private int chunkSize = 256 * 1024;
+	
+	/**
+	 * Payloads larger than that are written into side files
+	 */
+	private long fileThreshold = 512 * 1024;
+	
+	private volatile boolean filesTableCreated;
+	
+	BlobStore(SqliteDatasourceProviderImpl provider, File directory) {
+		this.provider = provider;
+		this.directory = directory;
+	}
+	
+	/**
+	 * Returns payload length in bytes or -1 if cell is NULL
+	 */
+	public long getLength(String table, String column, long rowid) throws IOException
+	{
+		Cell cell = getCell(table, column, rowid);
+		if (cell.reference != null)
+			return getFile(cell).length();
+		return cell.length;
+	}
+	
+	/**
+	 * Opens stream reading payload chunk by chunk,
+	 * returns null if cell is NULL. Chunks are read by separate
+	 * queries, so cell shouldn't be changed while being read
+	 */
+	public InputStream openInputStream(String table, String column, long rowid) throws IOException
+	{
+		Cell cell = getCell(table, column, rowid);
+		if (cell.reference != null)
+			return new FileInputStream(getFile(cell));
+		if (cell.length < 0)
+			return null;
+		
+		// substr counts characters of text, bytes of blobs
+		String value = "blob".equals(cell.type) ? quoteIdentifier(column) : "CAST(" + quoteIdentifier(column) + " AS BLOB)";
+		return new ChunkInputStream(value, " FROM " + quoteIdentifier(table) + " WHERE rowid = " + rowid, cell.length);
+	}
+	
+	/**
+	 * Writes payload read from stream into existing row, payload is
+	 * kept in memory only up to side file threshold. Side file
+	 * previously referenced by the cell is removed
+	 */
+	public void write(String table, String column, long rowid, InputStream input) throws IOException
+	{
+		Cell previous = getCell(table, column, rowid);
+		
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		boolean ended = copy(input, head, Math.min(fileThreshold, Long.MAX_VALUE - 1) + 1);
+		
+		Object value;
+		File file = null;
+		if (ended && head.size() <= fileThreshold) {
+			value = head.toByteArray();
+		} else {
+			file = createFile(table, column, rowid);
+			writeFile(file, head, input);
+			value = FILE_REFERENCE_PREFIX + file.getName();
+		}
+		
+		int updated = provider.executeUpdateDelete("UPDATE " + quoteIdentifier(table) + " SET " + quoteIdentifier(column)
+				+ " = ? WHERE rowid = " + rowid, value);
+		if (updated == 0) {
+			if (file != null)
+				removeFile(file);
+			throw new FileNotFoundException("Row " + rowid + " of " + table + " doesn't exist");
+		}
+		
+		if (previous.file != null)
+			removeFile(previous.file);
+	}
+	
+	/**
+	 * Sets cell to NULL and removes its side file
+	 */
+	public void delete(String table, String column, long rowid) throws IOException
+	{
+		Cell previous = getCell(table, column, rowid);
+		provider.executeUpdateDelete("UPDATE " + quoteIdentifier(table) + " SET " + quoteIdentifier(column)
+				+ " = NULL WHERE rowid = " + rowid);
+		if (previous.file != null)
+			removeFile(previous.file);
+	}
+	
+	/**
+	 * Removes side files no longer referenced by their cells,
+	 * e.g. after rows have been deleted by SQL, returns number
+	 * of removed files
+	 */
+	public int removeUnreferencedFiles()
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+			return 0;
+		
+		ensureFilesTable();
+		int removed = 0;
+		for (File file : files)
+		{
+			if (System.currentTimeMillis() - file.lastModified() < UNREFERENCED_FILE_MIN_AGE)
+				continue;
+			
+			List<Map<String, String>> owner = check(provider.execute(new Query("SELECT table_name, column_name, row_id FROM "
+					+ FILES_TABLE + " WHERE file = " + toSqlLiteral(file.getName())))).getData();
+			if (owner.isEmpty() == false && isReferenced(owner.get(0), file))
+				continue;
+			
+			removeFile(file);
+			removed++;
+		}
+		
+		return removed;
+	}
+	
+	private boolean isReferenced(Map<String, String> owner, File file)
+	{
+		QueryResult result = provider.execute(new Query("SELECT 1 FROM " + quoteIdentifier(owner.get("table_name"))
+				+ " WHERE rowid = " + owner.get("row_id") + " AND " + quoteIdentifier(owner.get("column_name"))
+				+ " = " + toSqlLiteral(FILE_REFERENCE_PREFIX + file.getName())));
+		
+		// table may have been dropped
+		return result.getStatus() != DatasourceProvider.SQL_SUCCESS || result.getData().isEmpty() == false;
+	}
+	
+	/**
+	 * Registers new side file before it's written,
+	 * so an interrupted write leaves no unknown file
+	 */
+	private File createFile(String table, String column, long rowid) throws IOException
+	{
+		if (directory.isDirectory() == false && directory.mkdirs() == false)
+			throw new IOException("Can't create directory " + directory);
+		
+		ensureFilesTable();
+		File file = new File(directory, UUID.randomUUID() + ".blob");
+		check(provider.executeInTransaction(Arrays.asList("INSERT INTO " + FILES_TABLE
+				+ " (file, table_name, column_name, row_id) VALUES (" + toSqlLiteral(file.getName()) + ", "
+				+ toSqlLiteral(table) + ", " + toSqlLiteral(column) + ", " + rowid + ")")));
+		return file;
+	}
+	
+	private void writeFile(File file, ByteArrayOutputStream head, InputStream input) throws IOException
+	{
+		boolean written = false;
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			head.writeTo(output);
+			copy(input, output, Long.MAX_VALUE);
+			output.getFD().sync();
+			written = true;
+		} finally {
+			output.close();
+			if (written == false)
+				removeFile(file);
+		}
+	}
+	
+	private void removeFile(File file)
+	{
+		if (file.delete() == false && file.exists())
+			Log.w(LOG_TAG, "Error removing blob file " + file);
+		
+		ensureFilesTable();
+		provider.executeInTransaction(Arrays.asList("DELETE FROM " + FILES_TABLE
+					+ " WHERE file = " + toSqlLiteral(file.getName())));
+	}
+	
+	/**
+	 * Copies at most limit bytes, returns true if input has ended
+	 */
+	private boolean copy(InputStream input, OutputStream output, long limit) throws IOException
+	{
+		byte[] buffer = new byte[(int) Math.min(chunkSize, Math.max(1, limit))];
+		long copied = 0;
+		while (copied < limit) {
+			int read = input.read(buffer, 0, (int) Math.min(buffer.length, limit - copied));
+			if (read < 0)
+				return true;
+			output.write(buffer, 0, read);
+			copied += read;
+		}
+		return false;
+	}
+	
+	private void ensureFilesTable()
+	{
+		if (filesTableCreated)
+			return;
+		
+		check(provider.executeInTransaction(Arrays.asList("CREATE TABLE IF NOT EXISTS " + FILES_TABLE
+				+ " (file TEXT PRIMARY KEY, table_name TEXT NOT NULL, column_name TEXT NOT NULL, row_id INTEGER NOT NULL)")));
+		filesTableCreated = true;
+	}
+	
+	private Cell getCell(String table, String column, long rowid) throws IOException
+	{
+		String quotedColumn = quoteIdentifier(column);
+		Cursor cursor = provider.getDatabase().rawQuery("SELECT typeof(" + quotedColumn + "), length(CAST(" + quotedColumn
+				+ " AS BLOB)), CASE WHEN typeof(" + quotedColumn + ") = 'text' AND substr(" + quotedColumn + ", 1, "
+				+ FILE_REFERENCE_PREFIX.length() + ") = " + toSqlLiteral(FILE_REFERENCE_PREFIX) + " THEN " + quotedColumn
+				+ " END FROM " + quoteIdentifier(table) + " WHERE rowid = " + rowid, null);
+		try {
+			if (cursor.moveToFirst() == false)
+				throw new FileNotFoundException("Row " + rowid + " of " + table + " doesn't exist");
+			
+			Cell cell = new Cell();
+			cell.type = cursor.getString(0);
+			cell.length = cursor.isNull(1) ? -1 : cursor.getLong(1);
+			if (cursor.isNull(2) == false) {
+				cell.reference = cursor.getString(2).substring(FILE_REFERENCE_PREFIX.length());
+				cell.file = resolveFile(table, column, rowid, cell.reference);
+			}
+			return cell;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	private File getFile(Cell cell) throws IOException
+	{
+		if (cell.file == null)
+			throw new IOException("Cell references unregistered blob file " + cell.reference);
+		return cell.file;
+	}
+	
+	/**
+	 * Resolves side file referenced by a cell, only files registered
+	 * for that very cell are accepted, so a crafted reference can't
+	 * point outside of blob directory. Returns null otherwise
+	 */
+	private File resolveFile(String table, String column, long rowid, String name)
+	{
+		if (name.length() == 0 || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.contains(".."))
+			return null;
+		
+		QueryResult result = provider.execute(new Query("SELECT 1 FROM " + FILES_TABLE + " WHERE file = "
+				+ toSqlLiteral(name) + " AND table_name = " + toSqlLiteral(table) + " AND column_name = "
+				+ toSqlLiteral(column) + " AND row_id = " + rowid));
+		if (result.getStatus() != DatasourceProvider.SQL_SUCCESS || result.getData().isEmpty())
+			return null;
+		
+		return new File(directory, name);
+	}
+	
+	private static QueryResult check(QueryResult result)
+	{
+		if (result.getStatus() != DatasourceProvider.SQL_SUCCESS)
+			throw new IllegalStateException(result.getDb() + ": " + result.getError());
+		return result;
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/**
+	 * Sets size of chunks read by one query, has to stay
+	 * well below CursorWindow size of 2 MB
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+	public long getFileThreshold() {
+		return fileThreshold;
+	}
+	
+	/**
+	 * Sets size above which payloads are written into side files,
+	 * payloads up to it are held in memory while being written
+	 */
+	public void setFileThreshold(long fileThreshold)
+	{
+		if (fileThreshold < 0)
+			throw new IllegalArgumentException("File threshold must not be negative");
+		this.fileThreshold = fileThreshold;
+	}
+	
+	private static class Cell
+	{
+		private String type;
+		private long length;
+		
+		/**
+		 * Side file name as stored in the cell
+		 */
+		private String reference;
+		
+		/**
+		 * Side file, null unless registered for the cell
+		 */
+		private File file;
+	}
+	
+	/**
+	 * Reads cell by chunks selected with substr
+	 */
+	private class ChunkInputStream extends InputStream
+	{
+		private final String value;
+		private final String from;
+		private final long length;
+		private long position;
+		private byte[] chunk = new byte[0];
+		private int chunkPosition;
+		
+		private ChunkInputStream(String value, String from, long length) {
+			this.value = value;
+			this.from = from;
+			this.length = length;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException
+		{
+			if (count == 0)
+				return 0;
+			if (chunkPosition == chunk.length && readChunk() == false)
+				return -1;
+			
+			int read = Math.min(count, chunk.length - chunkPosition);
+			System.arraycopy(chunk, chunkPosition, buffer, offset, read);
+			chunkPosition += read;
+			return read;
+		}
+		
+		@Override
+		public long skip(long count)
+		{
+			long skipped = Math.min(count, chunk.length - chunkPosition);
+			chunkPosition += skipped;
+			
+			// skipping beyond current chunk doesn't read anything
+			long beyond = Math.min(count - skipped, length - position);
+			position += beyond;
+			return skipped + beyond;
+		}
+		
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, chunk.length - chunkPosition + length - position);
+		}
+		
+		private boolean readChunk() throws IOException
+		{
+			if (position >= length)
+				return false;
+			
+			Cursor cursor = provider.getDatabase().rawQuery("SELECT substr(" + value + ", " + (position + 1) + ", "
+					+ Math.min(chunkSize, length - position) + ")" + from, null);
+			try {
+				if (cursor.moveToFirst() == false || cursor.isNull(0))
+					throw new IOException("Blob has been removed while being read");
+				chunk = cursor.getBlob(0);
+			} finally {
+				cursor.close();
+			}
+			
+			if (chunk.length == 0)
+				throw new IOException("Blob has been truncated while being read");
+			
+			chunkPosition = 0;
+			position += chunk.length;
+			return true;
+		}
+	}
+}
@@ -78,4 +78,24 @@ public class DatabaseHelper
 				 .replaceAll("\\r", "\r")
 				 .replaceAll("\\t", "\t");
 	}
+	
+	/**
+	 * Returns SQL literal for given value, numbers are
+	 * inlined as is, everything else as quoted string
+	 */
+	public static String toSqlLiteral(Object value)
+	{
+		if (value == null)
+			return "NULL";
+		if (value instanceof Number)
+			return value.toString();
+		return "'" + value.toString().replace("'", "''") + "'";
+	}
+	
+	/**
+	 * Returns quoted SQL identifier
+	 */
+	public static String quoteIdentifier(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
 }
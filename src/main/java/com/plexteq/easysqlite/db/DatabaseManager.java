@@ -31,10 +31,34 @@
 
 package com.plexteq.easysqlite.db;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface DatabaseManager
 {
 	public DatasourceProvider getDatabaseProvider(String databaseName);
 	
+	/**
+	 * Returns provider for given database, read-only flag
+	 * is only taken into account when provider is created
+	 */
+	public DatasourceProvider getDatabaseProvider(String databaseName, boolean readOnly);
+	
+	/**
+	 * Opens given databases in parallel on background threads
+	 * and preloads listed tables and indexes of each database.
+	 * Returns immediately, queries issued to a database which
+	 * is still being opened wait for warm-up to complete
+	 */
+	public void warmUp(Map<String, ? extends Collection<String>> databases);
+	
+	/**
+	 * Executes query against given databases in parallel, running
+	 * at most given number of executions at once (number of cores
+	 * if not positive), and merges successful resultsets
+	 */
+	public FanOutResult executeAll(Collection<String> databases, Query query, ResultMerger merger, int parallelism);
+	
 	/**
 	 * Closes all previously opened databases
 	 */
@@ -0,0 +1,345 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Copies database into a file a few pages per step, in the manner
+ * of SQLite online backup. Writes through provider are excluded only
+ * while a step is running. If database is written between steps,
+ * copying restarts from scratch, after too many restarts the rest
+ * of the database is copied in a single step. Writes done bypassing
+ * provider, e.g. by other processes, aren't detected
+ */
+public class DatabaseSnapshot
+{
+	/**
+	 * Offsets of file format version numbers in database header
+	 */
+	private static final int HEADER_WRITE_VERSION = 18;
+	private static final int HEADER_READ_VERSION = 19;
+	
+	/**
+	 * Version number of legacy (rollback journal) file format
+	 */
+	private static final int FORMAT_LEGACY = 1;
+	
+	/**
+	 * Checkpoint blocked by readers is retried this many times
+	 * with given delay before pass fails
+	 */
+	private static final int CHECKPOINT_ATTEMPTS = 5;
+	private static final long CHECKPOINT_RETRY_DELAY = 20;
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final SqliteDatasourceProviderImpl provider;
+	private final File target;
+	
+	private int pagesPerStep = 100;
+	private long stepDelay = 10;
+	private int maxRestarts = 3;
+	private Listener listener;
+	
+	private RandomAccessFile output;
+	private long generation;
+	private int pageSize;
+	private int pageCount;
+	private int copiedPages;
+	private int restarts;
+	private long copiedBytes;
+	private long startTime;
+	private long finishTime;
+	private boolean finished;
+	
+	/**
+	 * Receives progress notifications after each step
+	 */
+	public interface Listener
+	{
+		public void onProgress(DatabaseSnapshot snapshot);
+	}
+	
+	DatabaseSnapshot(SqliteDatasourceProviderImpl provider, File target) {
+		this.provider = provider;
+		this.target = target;
+	}
+	
+	/**
+	 * Copies next portion of pages, returns true once
+	 * the whole database has been copied
+	 */
+	public boolean step() throws IOException
+	{
+		if (finished)
+			return true;
+		
+		ReentrantLock writeLock = provider.getWriteLock();
+		writeLock.lock();
+		try
+		{
+			if (output == null) {
+				startTime = TimeHelper.nowMs();
+				startPass();
+			} else if (provider.getWriteGeneration() != generation) {
+				restarts++;
+				Log.d(LOG_TAG, "Database changed while copying, restarting snapshot (" + restarts + ")");
+				startPass();
+			}
+			
+			// too many restarts, finishing while holding writers off
+			int pages = restarts > maxRestarts ? pageCount - copiedPages : pagesPerStep;
+			copyPages(Math.min(pages, pageCount - copiedPages));
+			
+			if (copiedPages == pageCount)
+				finish();
+		}
+		catch (IOException e)
+		{
+			abort();
+			throw e;
+		}
+		finally {
+			writeLock.unlock();
+		}
+		
+		if (listener != null)
+			listener.onProgress(this);
+		return finished;
+	}
+	
+	/**
+	 * Copies whole database, sleeping between steps
+	 * to let writers through
+	 */
+	public void run() throws IOException, InterruptedException
+	{
+		while (step() == false)
+			Thread.sleep(stepDelay);
+		
+		Log.d(LOG_TAG, "Snapshot of " + provider.getDatabase().getPath() + " copied to " + target + " in "
+				+ (finishTime - startTime) + " ms, " + restarts + " restarts");
+	}
+	
+	/**
+	 * Opens finished snapshot as read-only database
+	 */
+	public DatasourceProvider openReadOnly()
+	{
+		if (finished == false)
+			throw new IllegalStateException("Snapshot isn't finished yet");
+		return new SqliteDatasourceProviderImpl(provider.getContext(), target.getAbsolutePath(), true);
+	}
+	
+	private void startPass() throws IOException
+	{
+		SQLiteDatabase database = provider.getDatabase();
+		
+		checkpoint(database);
+		pageSize = (int) query(database, "PRAGMA page_size");
+		pageCount = (int) query(database, "PRAGMA page_count");
+		
+		if (output == null)
+			output = new RandomAccessFile(target, "rw");
+		output.setLength(0);
+		
+		copiedPages = 0;
+		generation = provider.getWriteGeneration();
+	}
+	
+	/**
+	 * Moves WAL content into database file, so the file alone
+	 * is consistent. Fails unless every frame of the log has been
+	 * checkpointed, rollback journal database reports -1 for both
+	 */
+	private void checkpoint(SQLiteDatabase database) throws IOException
+	{
+		long busy = 0, log = 0, checkpointed = 0;
+		for (int attempt = 0 ; attempt < CHECKPOINT_ATTEMPTS ; attempt++)
+		{
+			if (attempt > 0) {
+				try {
+					Thread.sleep(CHECKPOINT_RETRY_DELAY);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			
+			Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+			try {
+				if (cursor.moveToFirst() == false)
+					return;
+				busy = cursor.getLong(0);
+				log = cursor.getLong(1);
+				checkpointed = cursor.getLong(2);
+			} finally {
+				cursor.close();
+			}
+			
+			if (busy == 0 && log == checkpointed)
+				return;
+		}
+		
+		throw new IOException("Checkpoint of " + database.getPath() + " incomplete, busy " + busy + ", "
+				+ checkpointed + " of " + log + " frames checkpointed");
+	}
+	
+	private void copyPages(int pages) throws IOException
+	{
+		byte[] buffer = new byte[pageSize];
+		RandomAccessFile input = new RandomAccessFile(provider.getDatabase().getPath(), "r");
+		try {
+			input.seek((long) copiedPages * pageSize);
+			output.seek((long) copiedPages * pageSize);
+			
+			for (int i = 0 ; i < pages ; i++) {
+				input.readFully(buffer);
+				output.write(buffer);
+				copiedPages++;
+				copiedBytes += pageSize;
+			}
+		} finally {
+			input.close();
+		}
+	}
+	
+	private void finish() throws IOException
+	{
+		// WAL databases can't be opened read-only without -shm file,
+		// so snapshot is switched to rollback journal format
+		if (pageCount > 0) {
+			output.seek(HEADER_WRITE_VERSION);
+			output.write(FORMAT_LEGACY);
+			output.seek(HEADER_READ_VERSION);
+			output.write(FORMAT_LEGACY);
+		}
+		
+		output.getFD().sync();
+		output.close();
+		
+		finished = true;
+		finishTime = TimeHelper.nowMs();
+	}
+	
+	private void abort()
+	{
+		try {
+			if (output != null)
+				output.close();
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Error closing snapshot file " + target);
+		}
+		output = null;
+	}
+	
+	private long query(SQLiteDatabase database, String sql)
+	{
+		Cursor cursor = database.rawQuery(sql, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	public File getTarget() {
+		return target;
+	}
+	
+	public boolean isFinished() {
+		return finished;
+	}
+	
+	public int getPageCount() {
+		return pageCount;
+	}
+	
+	public int getCopiedPages() {
+		return copiedPages;
+	}
+	
+	public int getRemainingPages() {
+		return pageCount - copiedPages;
+	}
+	
+	public int getRestarts() {
+		return restarts;
+	}
+	
+	/**
+	 * Returns copied part of database, from 0 to 1
+	 */
+	public double getProgress() {
+		return pageCount > 0 ? (double) copiedPages / pageCount : 0;
+	}
+	
+	/**
+	 * Returns copying throughput in bytes per second, restarted
+	 * passes included
+	 */
+	public long getThroughput()
+	{
+		long elapsed = (finished ? finishTime : TimeHelper.nowMs()) - startTime;
+		return elapsed > 0 ? copiedBytes * 1000 / elapsed : 0;
+	}
+	
+	public int getPagesPerStep() {
+		return pagesPerStep;
+	}
+	public void setPagesPerStep(int pagesPerStep) {
+		this.pagesPerStep = pagesPerStep;
+	}
+	public long getStepDelay() {
+		return stepDelay;
+	}
+	public void setStepDelay(long stepDelay) {
+		this.stepDelay = stepDelay;
+	}
+	public int getMaxRestarts() {
+		return maxRestarts;
+	}
+	public void setMaxRestarts(int maxRestarts) {
+		this.maxRestarts = maxRestarts;
+	}
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+}
@@ -31,6 +31,9 @@
 
 package com.plexteq.easysqlite.db;
 
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 public interface DatasourceProvider
@@ -45,6 +48,24 @@ public interface DatasourceProvider
 	 */
 	public final static int SQL_ERROR = 1;
 	
+	/**
+	 * Code for SELECT which hit row or byte limit,
+	 * resultset contains rows read before the limit
+	 */
+	public final static int SQL_TRUNCATED = 2;
+	
+	/**
+	 * Code for query cancelled by the caller or timed out
+	 */
+	public final static int SQL_CANCELLED = 3;
+	
+	/**
+	 * Code for query executed against several databases
+	 * which failed on some of them, or for background query
+	 * which failed after some of its statements were committed
+	 */
+	public final static int SQL_PARTIAL = 4;
+	
 	/**
 	 * Code for invalid SQL 
 	 */
@@ -59,6 +80,25 @@ public interface DatasourceProvider
 	 * Executes arbitrary query
 	 */
 	public QueryResult execute(Query query);
+	
+	/**
+	 * Executes several non-extraction statements in one
+	 * transaction, the same way as multiple queries joined
+	 * with SQL_QUERY_SEPARATOR but without splitting SQL
+	 */
+	public QueryResult executeInTransaction(List<String> statements);
+	
+	/**
+	 * Executes SELECT query mapping its rows to objects
+	 * of given class, see {@link RowMappers#forClass(Class)}
+	 */
+	public <T> MappedQueryResult<T> execute(Query query, Class<T> type);
+	
+	/**
+	 * Executes SELECT query mapping its rows with mappers
+	 * created by given factory
+	 */
+	public <T> MappedQueryResult<T> execute(Query query, RowMapperFactory<T> mapperFactory);
 
 	/**
 	 * Returns list of tables stored in database
@@ -71,8 +111,116 @@ public interface DatasourceProvider
 	public int getRowCount(String tableName);
 	
 	/**
-	 * Closes database and releases
-	 * associated handles and resources 
+	 * Sets limits applied to queries which don't set their own
+	 */
+	public void setDefaultLimits(QueryLimits limits);
+	
+	public QueryLimits getDefaultLimits();
+	
+	/**
+	 * Starts recording executed queries to given recorder,
+	 * null stops recording
+	 */
+	public void setQueryRecorder(QueryRecorder recorder);
+	
+	/**
+	 * Enables coalescing of identical extraction queries running
+	 * at the same time, data of their results becomes unmodifiable
+	 */
+	public void setQueryCoalescing(boolean coalescing);
+	
+	/**
+	 * Returns coalescer holding coalescing metrics
+	 */
+	public QueryCoalescer getQueryCoalescer();
+	
+	/**
+	 * Subscribes to changes of extraction query result. Query is executed
+	 * right away and again after writes through provider changed tables
+	 * it reads, listener receives rows changed by key column value
+	 */
+	public QuerySubscription subscribe(Query query, String keyColumn, QuerySubscription.Listener listener);
+	
+	/**
+	 * Enables admission of queries by their priority, queries
+	 * wait until provider scheduler lets them execute
+	 */
+	public void setQueryScheduling(boolean scheduling);
+	
+	/**
+	 * Returns scheduler holding limits and wait time metrics per priority
+	 */
+	public QueryScheduler getQueryScheduler();
+	
+	/**
+	 * Opens database if it hasn't been opened yet.
+	 * Providers open lazily on first use, so calling
+	 * this is only needed to move the cost off the
+	 * calling thread of the first query
+	 */
+	public void open();
+	
+	/**
+	 * Returns true if database was opened in read-only mode
+	 */
+	public boolean isReadOnly();
+	
+	/**
+	 * Reads given tables and indexes through, so their
+	 * pages end up in SQLite and OS page caches
+	 */
+	public void preload(Collection<String> names);
+	
+	/**
+	 * Creates full-text index over given columns of a table or
+	 * opens existing one, pre-existing rows get searchable once
+	 * {@link FullTextIndex#build()} completes
+	 */
+	public FullTextIndex createFullTextIndex(String table, List<String> columns);
+	
+	/**
+	 * Creates summary table holding result of given aggregate query,
+	 * kept up to date on every change of the source table, or opens
+	 * existing one. Existing one of a different definition is recreated,
+	 * existing table which isn't a summary table is an error (throws
+	 * IllegalStateException). Supported are queries of form
+	 * SELECT g, COUNT(*), SUM(c), MIN(c), MAX(c) FROM t GROUP BY g
+	 */
+	public SummaryTable createSummaryTable(String name, String aggregateQuery);
+	
+	/**
+	 * Returns analyzer reporting storage used by database,
+	 * its tables and indexes
+	 */
+	public StorageAnalyzer getStorageAnalyzer();
+	
+	/**
+	 * Returns migration engine, migrations have to be
+	 * registered before database is opened
+	 */
+	public MigrationEngine getMigrationEngine();
+	
+	/**
+	 * Returns store streaming blobs in chunks, without
+	 * materializing them into resultset
+	 */
+	public BlobStore getBlobStore();
+	
+	/**
+	 * Returns manager enforcing retention policies of tables
+	 */
+	public RetentionManager getRetentionManager();
+	
+	/**
+	 * Creates snapshot copying database into given file
+	 * step by step, without stalling writers for long
+	 */
+	public DatabaseSnapshot createSnapshot(File target);
+	
+	/**
+	 * Closes database and releases associated handles
+	 * and resources, cancels subscriptions. Closed provider
+	 * can't be reopened, queries executed later fail
 	 */
 	public void close();
 }
@@ -31,11 +31,22 @@
 
 package com.plexteq.easysqlite.db;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.content.Context;
+import android.util.Log;
 
 
 public class DefaultDatabaseManager implements DatabaseManager
@@ -49,6 +60,8 @@ public class DefaultDatabaseManager implements DatabaseManager
 
 	private static Context ctx;
 	
+	private final String LOG_TAG = getClass().getName();
+	
 	private DefaultDatabaseManager() {
 	}
 	
@@ -58,37 +71,212 @@ public class DefaultDatabaseManager implements DatabaseManager
 	}
 	
 	@Override
-	public DatasourceProvider getDatabaseProvider(String databaseName)
+	public DatasourceProvider getDatabaseProvider(String databaseName) {
+		return getDatabaseProvider(databaseName, false);
+	}
+	
+	@Override
+	public DatasourceProvider getDatabaseProvider(String databaseName, boolean readOnly)
 	{
 		if (databaseName == null)
 			return null;
 		
-		DatasourceProvider provider = providers.get(databaseName);
-		if (provider == null) {
-			provider = new SqliteDatasourceProviderImpl(ctx, databaseName);
-			providers.put(databaseName, provider);
+		synchronized (providers)
+		{
+			DatasourceProvider provider = providers.get(databaseName);
+			if (provider == null) {
+				provider = new SqliteDatasourceProviderImpl(ctx, databaseName, readOnly);
+				providers.put(databaseName, provider);
+			}
+			
+			return provider;
 		}
+	}
+	
+	@Override
+	public void warmUp(Map<String, ? extends Collection<String>> databases)
+	{
+		if (databases.isEmpty())
+			return;
+		
+		int threads = Math.min(databases.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				ThreadHelper.newThreadFactory("easysqlite-warmup"));
 		
-		return provider;
+		for (final Entry<String, ? extends Collection<String>> entry : databases.entrySet())
+		{
+			final DatasourceProvider provider = getDatabaseProvider(entry.getKey());
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try {
+						long warmUpStart = TimeHelper.nowMs();
+						provider.open();
+						if (entry.getValue() != null)
+							provider.preload(entry.getValue());
+						Log.d(LOG_TAG, "Warmed up database " + entry.getKey() + " in "
+								+ (TimeHelper.nowMs() - warmUpStart) + " ms");
+					} catch (Exception e) {
+						Log.e(LOG_TAG, "Error warming up database " + entry.getKey(), e);
+					}
+				}
+			});
+		}
+		
+		// lets pool threads finish pending tasks and exit
+		executor.shutdown();
+	}
+	
+	@Override
+	public FanOutResult executeAll(Collection<String> databases, final Query query, ResultMerger merger, int parallelism)
+	{
+		FanOutResult result = new FanOutResult();
+		result.setTimestamp(TimeHelper.now());
+		result.setDb(join(databases));
+		result.setData(Collections.<Map<String, String>>emptyList());
+		
+		long queryStart = TimeHelper.nowMs();
+		
+		if (databases.isEmpty()) {
+			result.setStatus(DatasourceProvider.SQL_SUCCESS);
+			return result;
+		}
+		
+		int threads = Math.min(databases.size(),
+				parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				ThreadHelper.newThreadFactory("easysqlite-fanout"));
+		
+		Map<String, Future<QueryResult>> executions = new LinkedHashMap<String, Future<QueryResult>>();
+		try
+		{
+			for (String database : databases)
+			{
+				final DatasourceProvider provider = getDatabaseProvider(database);
+				executions.put(database, executor.submit(new Callable<QueryResult>()
+				{
+					@Override
+					public QueryResult call() {
+						return provider.execute(query);
+					}
+				}));
+			}
+			
+			for (Entry<String, Future<QueryResult>> execution : executions.entrySet())
+				result.getResults().put(execution.getKey(), getFanOutResult(execution.getKey(), execution.getValue()));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		
+		mergeFanOutResults(result, merger);
+		result.setDuration(TimeHelper.nowMs() - queryStart);
+		return result;
+	}
+	
+	private QueryResult getFanOutResult(String database, Future<QueryResult> execution)
+	{
+		try {
+			return execution.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return getFanOutError(database, "Interrupted while waiting for execution");
+		} catch (ExecutionException e) {
+			return getFanOutError(database, String.valueOf(e.getCause().getMessage()));
+		}
+	}
+	
+	private QueryResult getFanOutError(String database, String error)
+	{
+		QueryResult result = new QueryResult();
+		result.setDb(database);
+		result.setData(Collections.<Map<String, String>>emptyList());
+		result.setStatus(DatasourceProvider.SQL_ERROR);
+		result.setTimestamp(TimeHelper.now());
+		result.setError(error);
+		return result;
+	}
+	
+	private void mergeFanOutResults(FanOutResult result, ResultMerger merger)
+	{
+		List<List<Map<String, String>>> resultsets = new ArrayList<List<Map<String, String>>>();
+		StringBuilder errors = new StringBuilder();
+		boolean truncated = false;
+		
+		for (QueryResult databaseResult : result.getResults().values())
+		{
+			if (FanOutResult.isFailure(databaseResult)) {
+				if (errors.length() > 0)
+					errors.append("; ");
+				errors.append(databaseResult.getDb()).append(": ").append(databaseResult.getError());
+				continue;
+			}
+			
+			truncated |= databaseResult.getStatus() == DatasourceProvider.SQL_TRUNCATED;
+			resultsets.add(databaseResult.getData());
+		}
+		
+		if (resultsets.isEmpty()) {
+			result.setStatus(DatasourceProvider.SQL_ERROR);
+			result.setError(errors.toString());
+			return;
+		}
+		
+		try {
+			result.setData(merger.merge(resultsets));
+			result.setSize(result.getData().size());
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Error merging fan-out results", e);
+			result.setStatus(DatasourceProvider.SQL_ERROR);
+			result.setError("Error merging results: " + e.getMessage());
+			return;
+		}
+		
+		if (errors.length() > 0) {
+			result.setStatus(DatasourceProvider.SQL_PARTIAL);
+			result.setError(errors.toString());
+		} else {
+			result.setStatus(truncated ? DatasourceProvider.SQL_TRUNCATED : DatasourceProvider.SQL_SUCCESS);
+		}
+	}
+	
+	private static String join(Collection<String> databases)
+	{
+		StringBuilder result = new StringBuilder();
+		for (String database : databases) {
+			if (result.length() > 0)
+				result.append(',');
+			result.append(database);
+		}
+		return result.toString();
 	}
 	
 	@Override
 	public void closeDatabases()
 	{
-		for (Entry<String, DatasourceProvider> entry : providers.entrySet())
-			closeDatabase(entry.getKey());
+		Collection<String> databases;
+		synchronized (providers) {
+			databases = new ArrayList<String>(providers.keySet());
+		}
+		
+		for (String database : databases)
+			closeDatabase(database);
 	}
 
 	@Override
 	public void closeDatabase(String database)
 	{
-		DatasourceProvider datasourceProvider = providers.get(database);
+		DatasourceProvider datasourceProvider;
+		synchronized (providers) {
+			datasourceProvider = providers.remove(database);
+		}
 		
 		if (datasourceProvider == null)
 			return;
 		
 		datasourceProvider.close();
-		providers.remove(database);
 	}
 
 	@Override
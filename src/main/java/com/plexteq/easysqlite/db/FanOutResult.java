@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Results of a query executed against several databases,
+ * data contains merged resultset of successful executions
+ */
+public class FanOutResult extends QueryResult
+{
+	/**
+	 * Execution results by database name
+	 */
+	private Map<String, QueryResult> results = new LinkedHashMap<String, QueryResult>();
+	
+	/**
+	 * Returns results of databases query failed on
+	 */
+	public Map<String, QueryResult> getFailures()
+	{
+		Map<String, QueryResult> failures = new LinkedHashMap<String, QueryResult>();
+		for (Entry<String, QueryResult> entry : results.entrySet())
+			if (isFailure(entry.getValue()))
+				failures.put(entry.getKey(), entry.getValue());
+		
+		return failures;
+	}
+	
+	static boolean isFailure(QueryResult result) {
+		return result.getStatus() != DatasourceProvider.SQL_SUCCESS
+				&& result.getStatus() != DatasourceProvider.SQL_TRUNCATED;
+	}
+	
+	public Map<String, QueryResult> getResults() {
+		return results;
+	}
+	public void setResults(Map<String, QueryResult> results) {
+		this.results = results;
+	}
+}
@@ -0,0 +1,436 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import static com.plexteq.easysqlite.db.DatabaseHelper.quoteIdentifier;
+import static com.plexteq.easysqlite.db.DatabaseHelper.toSqlLiteral;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * FTS4 index over columns of an existing table. Index is kept in sync
+ * with the table by triggers, rows existing at creation time are
+ * indexed incrementally in small batches, each in its own transaction.
+ * Building progress is stored in database, so interrupted build
+ * continues where it stopped. Index is named after the table with
+ * _fts suffix and can also be queried with MATCH directly
+ */
+public class FullTextIndex
+{
+	/**
+	 * Table holding build progress of indexes
+	 */
+	public static final String STATE_TABLE = "easysqlite_fts";
+	
+	private static final String ROWID_COLUMN = "easysqlite_rowid";
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final SqliteDatasourceProviderImpl provider;
+	private final String table;
+	private final List<String> columns;
+	private final String indexTable;
+	
+	private int batchSize = 500;
+	private long batchDelay = 10;
+	private String snippetStart = "<b>";
+	private String snippetEnd = "</b>";
+	private String snippetEllipsis = "...";
+	
+	FullTextIndex(SqliteDatasourceProviderImpl provider, String table, List<String> columns)
+	{
+		if (columns.isEmpty())
+			throw new IllegalArgumentException("At least one column has to be indexed");
+		
+		this.provider = provider;
+		this.table = table;
+		this.columns = Collections.unmodifiableList(new ArrayList<String>(columns));
+		this.indexTable = table + "_fts";
+	}
+	
+	/**
+	 * Creates index table and triggers unless they exist. Rows existing
+	 * at this point are left for {@link #build()}, which is resumed
+	 * if index has been created before
+	 */
+	void create()
+	{
+		check(provider.executeInTransaction(Collections.singletonList("CREATE TABLE IF NOT EXISTS " + STATE_TABLE
+				+ " (index_name TEXT PRIMARY KEY, last_rowid INTEGER NOT NULL, max_rowid INTEGER NOT NULL)")));
+		if (getState() != null)
+			return;
+		
+		String quotedIndex = quoteIdentifier(indexTable), quotedTable = quoteIdentifier(table);
+		String insertNew = "INSERT INTO " + quotedIndex + " (docid, " + join("", columns) + ") VALUES (new.rowid, "
+				+ join("new.", columns) + ");";
+		String deleteOld = "DELETE FROM " + quotedIndex + " WHERE docid = old.rowid;";
+		
+		// state is captured in the same transaction triggers are created,
+		// so rows above max_rowid are guaranteed to be indexed by triggers
+		check(provider.executeInTransaction(Arrays.asList(
+				"CREATE VIRTUAL TABLE " + quotedIndex + " USING fts4(" + join("", columns) + ")",
+				"CREATE TRIGGER " + quoteIdentifier(indexTable + "_insert") + " AFTER INSERT ON " + quotedTable
+					+ " BEGIN " + insertNew + " END",
+				"CREATE TRIGGER " + quoteIdentifier(indexTable + "_update") + " AFTER UPDATE ON " + quotedTable
+					+ " BEGIN " + deleteOld + " " + insertNew + " END",
+				"CREATE TRIGGER " + quoteIdentifier(indexTable + "_delete") + " AFTER DELETE ON " + quotedTable
+					+ " BEGIN " + deleteOld + " END",
+				"INSERT INTO " + STATE_TABLE + " (index_name, last_rowid, max_rowid) SELECT " + toSqlLiteral(indexTable)
+					+ ", ifnull(min(rowid), 1) - 1, ifnull(max(rowid), 0) FROM " + quotedTable)));
+	}
+	
+	/**
+	 * Drops index, its triggers and build state
+	 */
+	public void drop()
+	{
+		check(provider.executeInTransaction(Arrays.asList(
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(indexTable + "_insert"),
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(indexTable + "_update"),
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(indexTable + "_delete"),
+				"DROP TABLE IF EXISTS " + quoteIdentifier(indexTable),
+				"DELETE FROM " + STATE_TABLE + " WHERE index_name = " + toSqlLiteral(indexTable))));
+	}
+	
+	/**
+	 * Indexes next batch of pre-existing rows, returns true once all are indexed
+	 */
+	public boolean buildStep()
+	{
+		long[] state = getState();
+		if (state == null)
+			throw new IllegalStateException("Index " + indexTable + " doesn't exist");
+		if (state[0] >= state[1])
+			return true;
+		
+		List<Map<String, String>> bound = check(provider.execute(new Query("SELECT max(rowid) AS upper FROM (SELECT rowid FROM "
+				+ quoteIdentifier(table) + " WHERE rowid > " + state[0] + " AND rowid <= " + state[1]
+				+ " ORDER BY rowid LIMIT " + batchSize + ")"))).getData();
+		String upper = bound.isEmpty() || bound.get(0).get("upper") == null ?
+				String.valueOf(state[1]) : bound.get(0).get("upper");
+		
+		// rows changed since index creation are already indexed by triggers
+		check(provider.executeInTransaction(Arrays.asList(
+				"INSERT INTO " + quoteIdentifier(indexTable) + " (docid, " + join("", columns) + ") SELECT rowid, "
+					+ join("", columns) + " FROM " + quoteIdentifier(table) + " AS t WHERE rowid > " + state[0]
+					+ " AND rowid <= " + upper + " AND NOT EXISTS (SELECT 1 FROM " + quoteIdentifier(indexTable)
+					+ " WHERE docid = t.rowid)",
+				"UPDATE " + STATE_TABLE + " SET last_rowid = " + upper + " WHERE index_name = " + toSqlLiteral(indexTable))));
+		
+		return Long.parseLong(upper) >= state[1];
+	}
+	
+	/**
+	 * Indexes pre-existing rows on a background thread,
+	 * pausing between batches to let other writers through
+	 */
+	public Future<?> build()
+	{
+		ExecutorService executor = Executors.newSingleThreadExecutor(ThreadHelper.newThreadFactory("easysqlite-fts"));
+		try {
+			return executor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					long buildStart = TimeHelper.nowMs();
+					try {
+						while (buildStep() == false)
+							Thread.sleep(batchDelay);
+						Log.d(LOG_TAG, "Built index " + indexTable + " in " + (TimeHelper.nowMs() - buildStart) + " ms");
+					} catch (InterruptedException e) {
+						Log.d(LOG_TAG, "Building of index " + indexTable + " interrupted");
+					} catch (Exception e) {
+						Log.e(LOG_TAG, "Error building index " + indexTable, e);
+					}
+				}
+			});
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	public boolean isBuilt()
+	{
+		long[] state = getState();
+		return state != null && state[0] >= state[1];
+	}
+	
+	/**
+	 * Returns build progress from 0 to 1, estimated by rowid range
+	 */
+	public double getBuildProgress()
+	{
+		long[] state = getState();
+		if (state == null)
+			return 0;
+		
+		return state[0] >= state[1] ? 1 : Math.max(0, 1 - (double) (state[1] - state[0]) / Math.max(1, state[1]));
+	}
+	
+	/**
+	 * Searches index with FTS query syntax and returns requested page
+	 * of matched rows ordered by rank, computed from matchinfo() as
+	 * sum of phrase frequency in row relative to the whole index.
+	 * Ranking reads docids of all matches, unranked search only reads
+	 * requested page and returns rows in rowid order
+	 */
+	public FullTextSearchResult search(String match, int offset, int limit, boolean ranked)
+	{
+		FullTextSearchResult result = new FullTextSearchResult();
+		result.setTimestamp(TimeHelper.now());
+		result.setDb(provider.getDatabaseName());
+		result.setData(Collections.<Map<String, String>>emptyList());
+		
+		long queryStart = TimeHelper.nowMs();
+		try
+		{
+			SQLiteDatabase database = provider.getDatabase();
+			String quotedIndex = quoteIdentifier(indexTable);
+			
+			List<Long> page = new ArrayList<Long>();
+			final Map<Long, Double> scores = new HashMap<Long, Double>();
+			
+			if (ranked) {
+				Cursor cursor = database.rawQuery("SELECT docid, matchinfo(" + quotedIndex + ", 'pcx') FROM "
+						+ quotedIndex + " WHERE " + quotedIndex + " MATCH ?", new String[] { match });
+				try {
+					while (cursor.moveToNext())
+						scores.put(cursor.getLong(0), getScore(cursor.getBlob(1)));
+				} finally {
+					cursor.close();
+				}
+				
+				List<Long> docids = new ArrayList<Long>(scores.keySet());
+				Collections.sort(docids, new Comparator<Long>()
+				{
+					@Override
+					public int compare(Long left, Long right) {
+						int result = Double.compare(scores.get(right), scores.get(left));
+						return result != 0 ? result : left.compareTo(right);
+					}
+				});
+				
+				result.setTotalMatches(docids.size());
+				page.addAll(docids.subList(Math.min(offset, docids.size()), Math.min(offset + limit, docids.size())));
+			} else {
+				// counted separately, page past the last match has no rows to carry it
+				Cursor cursor = database.rawQuery("SELECT count(*) FROM " + quotedIndex + " WHERE " + quotedIndex + " MATCH ?",
+						new String[] { match });
+				try {
+					result.setTotalMatches(cursor.moveToFirst() ? cursor.getInt(0) : 0);
+				} finally {
+					cursor.close();
+				}
+				
+				cursor = database.rawQuery("SELECT docid FROM " + quotedIndex + " WHERE " + quotedIndex
+						+ " MATCH ? ORDER BY docid LIMIT " + limit + " OFFSET " + offset, new String[] { match });
+				try {
+					while (cursor.moveToNext())
+						page.add(cursor.getLong(0));
+				} finally {
+					cursor.close();
+				}
+			}
+			
+			fillPage(database, match, page, scores, result);
+			result.setStatus(DatasourceProvider.SQL_SUCCESS);
+		}
+		catch (Exception e)
+		{
+			result.setStatus(DatasourceProvider.SQL_ERROR);
+			result.setError(e.getMessage());
+		}
+		
+		result.setDuration(TimeHelper.nowMs() - queryStart);
+		result.setSize(result.getData().size());
+		return result;
+	}
+	
+	/**
+	 * Reads rows and snippets of page docids
+	 */
+	private void fillPage(SQLiteDatabase database, String match, List<Long> page, Map<Long, Double> scores,
+			FullTextSearchResult result)
+	{
+		if (page.isEmpty())
+			return;
+		
+		StringBuilder docids = new StringBuilder();
+		for (Long docid : page) {
+			if (docids.length() > 0)
+				docids.append(',');
+			docids.append(docid);
+		}
+		
+		String quotedIndex = quoteIdentifier(indexTable);
+		Map<Long, String> snippets = new HashMap<Long, String>();
+		Cursor cursor = database.rawQuery("SELECT docid, snippet(" + quotedIndex + ", ?, ?, ?, -1, 15) FROM "
+				+ quotedIndex + " WHERE " + quotedIndex + " MATCH ? AND docid IN (" + docids + ")",
+				new String[] { snippetStart, snippetEnd, snippetEllipsis, match });
+		try {
+			while (cursor.moveToNext())
+				snippets.put(cursor.getLong(0), cursor.getString(1));
+		} finally {
+			cursor.close();
+		}
+		
+		Map<Long, Map<String, String>> rows = new HashMap<Long, Map<String, String>>();
+		cursor = database.rawQuery("SELECT rowid AS " + ROWID_COLUMN + ", * FROM " + quoteIdentifier(table)
+				+ " WHERE rowid IN (" + docids + ")", null);
+		try {
+			String[] columnNames = cursor.getColumnNames();
+			while (cursor.moveToNext()) {
+				Map<String, String> row = new LinkedHashMap<String, String>();
+				for (int i = 1 ; i < columnNames.length ; i++)
+					row.put(columnNames[i], cursor.getString(i));
+				rows.put(cursor.getLong(0), row);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		List<Map<String, String>> data = new ArrayList<Map<String, String>>(page.size());
+		List<Double> pageScores = new ArrayList<Double>(page.size());
+		List<String> pageSnippets = new ArrayList<String>(page.size());
+		for (Long docid : page)
+		{
+			// row deleted between matching and reading
+			if (rows.containsKey(docid) == false)
+				continue;
+			
+			data.add(rows.get(docid));
+			pageScores.add(scores.containsKey(docid) ? scores.get(docid) : 0);
+			pageSnippets.add(snippets.get(docid));
+		}
+		
+		result.setData(data);
+		result.setScores(pageScores);
+		result.setSnippets(pageSnippets);
+	}
+	
+	/**
+	 * Sums hits of each phrase in each column relative
+	 * to hits of that phrase in the column across all rows
+	 */
+	private static double getScore(byte[] matchinfo)
+	{
+		ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+		int phrases = info.getInt(0), columns = info.getInt(4);
+		
+		double score = 0;
+		for (int phrase = 0 ; phrase < phrases ; phrase++) {
+			for (int column = 0 ; column < columns ; column++) {
+				int offset = 8 + 12 * (phrase * columns + column);
+				long rowHits = info.getInt(offset) & 0xffffffffL, allHits = info.getInt(offset + 4) & 0xffffffffL;
+				if (allHits > 0)
+					score += (double) rowHits / allHits;
+			}
+		}
+		
+		return score;
+	}
+	
+	/**
+	 * Returns last indexed and maximal pre-existing rowid or null
+	 */
+	private long[] getState()
+	{
+		List<Map<String, String>> state = check(provider.execute(new Query("SELECT last_rowid, max_rowid FROM "
+				+ STATE_TABLE + " WHERE index_name = " + toSqlLiteral(indexTable)))).getData();
+		if (state.isEmpty())
+			return null;
+		
+		return new long[] { Long.parseLong(state.get(0).get("last_rowid")), Long.parseLong(state.get(0).get("max_rowid")) };
+	}
+	
+	private static String join(String prefix, List<String> columns)
+	{
+		StringBuilder result = new StringBuilder();
+		for (String column : columns) {
+			if (result.length() > 0)
+				result.append(", ");
+			result.append(prefix).append(quoteIdentifier(column));
+		}
+		return result.toString();
+	}
+	
+	private static QueryResult check(QueryResult result)
+	{
+		if (result.getStatus() != DatasourceProvider.SQL_SUCCESS)
+			throw new IllegalStateException(result.getDb() + ": " + result.getError());
+		return result;
+	}
+	
+	public String getTable() {
+		return table;
+	}
+	public List<String> getColumns() {
+		return columns;
+	}
+	public String getIndexTable() {
+		return indexTable;
+	}
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	public long getBatchDelay() {
+		return batchDelay;
+	}
+	public void setBatchDelay(long batchDelay) {
+		this.batchDelay = batchDelay;
+	}
+	public void setSnippetMarkup(String start, String end, String ellipsis) {
+		this.snippetStart = start;
+		this.snippetEnd = end;
+		this.snippetEllipsis = ellipsis;
+	}
+}
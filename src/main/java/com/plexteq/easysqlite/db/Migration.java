@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Schema changes bringing database to a version. Statements are
+ * executed while database is being upgraded, table rebuilds are
+ * only prepared then and completed in background after database
+ * has been opened
+ */
+public class Migration
+{
+	private final int version;
+	private final List<String> statements = new ArrayList<String>();
+	private final List<TableRebuild> rebuilds = new ArrayList<TableRebuild>();
+	
+	public Migration(int version)
+	{
+		if (version < 2)
+			throw new IllegalArgumentException("Migration version has to be greater than 1");
+		this.version = version;
+	}
+	
+	/**
+	 * Adds statement executed during upgrade, e.g. creating a small
+	 * table or index. Statements shouldn't depend on rebuilds, those
+	 * may be still in progress
+	 */
+	public void addStatement(String sql) {
+		statements.add(sql);
+	}
+	
+	public void addTableRebuild(TableRebuild rebuild) {
+		rebuilds.add(rebuild);
+	}
+	
+	public int getVersion() {
+		return version;
+	}
+	
+	public List<String> getStatements() {
+		return Collections.unmodifiableList(statements);
+	}
+	
+	public List<TableRebuild> getTableRebuilds() {
+		return Collections.unmodifiableList(rebuilds);
+	}
+}
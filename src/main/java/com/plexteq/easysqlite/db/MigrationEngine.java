@@ -0,0 +1,490 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import static com.plexteq.easysqlite.db.DatabaseHelper.quoteIdentifier;
+import static com.plexteq.easysqlite.db.DatabaseHelper.toSqlLiteral;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.plexteq.easysqlite.db.MigrationProgress.Step;
+
+/**
+ * Upgrades database through registered migrations. Database version
+ * is the highest migration version, new database is created by running
+ * all migrations like upgrade from version 0, its table rebuilds are done
+ * right away as tables are empty. Upgrade itself only executes
+ * migration statements and records table rebuilds, rebuilds are done
+ * in background once database is open: shadow table is created and
+ * kept in sync with the old one by triggers, backfilled in small
+ * batches and swapped in atomically. State is kept in database, so
+ * rebuild interrupted by process death is resumed on next open
+ */
+public class MigrationEngine
+{
+	/**
+	 * Table recording applied migrations and state of rebuilds
+	 */
+	public static final String MIGRATIONS_TABLE = "easysqlite_migrations";
+	
+	private static final String SHADOW_SUFFIX = "_easysqlite_shadow";
+	private static final String MIRROR_TRIGGER_SUFFIX = "_easysqlite_mirror_";
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final SqliteDatasourceProviderImpl provider;
+	private final SortedMap<Integer, Migration> migrations = new TreeMap<Integer, Migration>();
+	
+	private int batchSize = 500;
+	private long batchDelay = 10;
+	private volatile Listener listener;
+	private Future<?> running;
+	
+	/**
+	 * Set once provider starts opening database, version is fixed then
+	 */
+	private boolean opened;
+	
+	/**
+	 * Receives progress of rebuilds, called on migration thread
+	 */
+	public interface Listener
+	{
+		public void onProgress(MigrationProgress progress);
+		
+		/**
+		 * Called once all recorded rebuilds are done
+		 */
+		public void onComplete();
+	}
+	
+	MigrationEngine(SqliteDatasourceProviderImpl provider) {
+		this.provider = provider;
+	}
+	
+	/**
+	 * Registers migration, migrations have to be registered
+	 * on every start, before database is opened, registering
+	 * later fails as database version is already fixed
+	 */
+	public synchronized void addMigration(Migration migration)
+	{
+		if (opened)
+			throw new IllegalStateException("Migrations must be registered before database " + provider.getDatabaseName()
+					+ " is opened");
+		if (migrations.containsKey(migration.getVersion()))
+			throw new IllegalArgumentException("Migration " + migration.getVersion() + " already registered");
+		migrations.put(migration.getVersion(), migration);
+	}
+	
+	/**
+	 * Stops accepting migrations, database is about to be opened
+	 */
+	synchronized void setOpened() {
+		opened = true;
+	}
+	
+	/**
+	 * Returns database version, highest registered migration version
+	 */
+	public synchronized int getVersion() {
+		return migrations.isEmpty() ? 1 : migrations.lastKey();
+	}
+	
+	/**
+	 * Executes statements and records rebuilds of migrations between
+	 * versions, within upgrade transaction. Migrations recorded before
+	 * are skipped, so they don't run again after database has been
+	 * opened with lower version by code not registering them. Rebuilds
+	 * of just created database are done in place instead of recording
+	 */
+	synchronized void prepare(SQLiteDatabase database, int oldVersion, int newVersion, boolean created)
+	{
+		database.execSQL("CREATE TABLE IF NOT EXISTS " + MIGRATIONS_TABLE + " (version INTEGER NOT NULL, "
+				+ "table_name TEXT NOT NULL, step TEXT NOT NULL, last_rowid INTEGER, max_rowid INTEGER, error TEXT, "
+				+ "PRIMARY KEY (version, table_name))");
+		
+		for (Migration migration : migrations.subMap(oldVersion + 1, newVersion + 1).values())
+		{
+			if (isRecorded(database, migration.getVersion())) {
+				Log.d(LOG_TAG, "Migration " + migration.getVersion() + " already applied, skipping");
+				continue;
+			}
+			
+			for (String statement : migration.getStatements())
+				database.execSQL(statement);
+			
+			database.execSQL("INSERT INTO " + MIGRATIONS_TABLE + " (version, table_name, step) VALUES ("
+					+ migration.getVersion() + ", '', '" + Step.DONE + "')");
+			for (TableRebuild rebuild : migration.getTableRebuilds())
+			{
+				if (created) {
+					database.execSQL("DROP TABLE IF EXISTS " + quoteIdentifier(rebuild.getTable() + SHADOW_SUFFIX));
+					database.execSQL("CREATE TABLE " + quoteIdentifier(rebuild.getTable() + SHADOW_SUFFIX)
+							+ " (" + rebuild.getDefinition() + ")");
+					database.execSQL(getCopyStatement(rebuild));
+					for (String statement : getSwapStatements(database, rebuild))
+						database.execSQL(statement);
+				}
+				
+				database.execSQL("INSERT INTO " + MIGRATIONS_TABLE + " (version, table_name, step) VALUES ("
+						+ migration.getVersion() + ", " + toSqlLiteral(rebuild.getTable()) + ", '"
+						+ (created ? Step.DONE : Step.PENDING) + "')");
+			}
+			
+			Log.d(LOG_TAG, "Applied migration " + migration.getVersion() + ", "
+					+ migration.getTableRebuilds().size() + (created ? " table rebuilds done" : " table rebuilds recorded"));
+		}
+	}
+	
+	private boolean isRecorded(SQLiteDatabase database, int version)
+	{
+		Cursor cursor = database.rawQuery("SELECT 1 FROM " + MIGRATIONS_TABLE + " WHERE version = " + version
+				+ " AND table_name = ''", null);
+		try {
+			return cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Continues recorded rebuilds on a background thread,
+	 * rebuild failed before is retried
+	 */
+	public synchronized Future<?> resume()
+	{
+		if (running != null && running.isDone() == false)
+			return running;
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor(ThreadHelper.newThreadFactory("easysqlite-migration"));
+		try {
+			running = executor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try {
+						runRebuilds();
+					} catch (InterruptedException e) {
+						Log.d(LOG_TAG, "Migration of " + provider.getDatabaseName() + " interrupted");
+					}
+				}
+			});
+			return running;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Interrupts rebuild in progress, it's resumed on next open
+	 */
+	synchronized void stop()
+	{
+		if (running != null)
+			running.cancel(true);
+	}
+	
+	private void runRebuilds() throws InterruptedException
+	{
+		if (provider.listTables().contains(MIGRATIONS_TABLE) == false)
+			return;
+		
+		for (MigrationProgress progress : getProgress())
+		{
+			if (progress.getStep() == Step.DONE)
+				continue;
+			
+			TableRebuild rebuild = getRebuild(progress);
+			if (rebuild == null) {
+				Log.w(LOG_TAG, "Rebuild of " + progress.getTable() + " in migration " + progress.getVersion()
+						+ " isn't registered, rebuilds stopped");
+				return;
+			}
+			
+			try {
+				rebuild(rebuild, progress);
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				Log.e(LOG_TAG, "Error rebuilding " + progress.getTable() + " in migration " + progress.getVersion(), e);
+				progress.setError(e.getMessage());
+				provider.executeInTransaction(Arrays.asList("UPDATE " + MIGRATIONS_TABLE + " SET error = "
+						+ toSqlLiteral(e.getMessage()) + getCondition(progress)));
+				notifyProgress(progress);
+				return;
+			}
+		}
+		
+		Listener listener = this.listener;
+		if (listener != null)
+			listener.onComplete();
+	}
+	
+	private void rebuild(TableRebuild rebuild, MigrationProgress progress) throws InterruptedException
+	{
+		long rebuildStart = TimeHelper.nowMs();
+		
+		if (progress.getStep() == Step.PENDING) {
+			startRebuild(rebuild, progress);
+			notifyProgress(progress);
+		}
+		
+		while (progress.getLastRowid() < progress.getMaxRowid()) {
+			backfill(rebuild, progress);
+			notifyProgress(progress);
+			Thread.sleep(batchDelay);
+		}
+		
+		swap(rebuild, progress);
+		notifyProgress(progress);
+		
+		Log.d(LOG_TAG, "Rebuilt " + rebuild.getTable() + " in migration " + progress.getVersion() + " in "
+				+ (TimeHelper.nowMs() - rebuildStart) + " ms");
+	}
+	
+	/**
+	 * Creates shadow table and mirror triggers, rows above max_rowid
+	 * captured in the same transaction are copied by triggers
+	 */
+	private void startRebuild(TableRebuild rebuild, MigrationProgress progress)
+	{
+		String table = quoteIdentifier(rebuild.getTable());
+		String shadow = quoteIdentifier(rebuild.getTable() + SHADOW_SUFFIX);
+		String copyNew = getCopyStatement(rebuild) + " WHERE rowid = new.rowid;";
+		
+		check(provider.executeInTransaction(Arrays.asList(
+				"DROP TABLE IF EXISTS " + shadow,
+				"CREATE TABLE " + shadow + " (" + rebuild.getDefinition() + ")",
+				"CREATE TRIGGER " + getTriggerName(rebuild, "insert") + " AFTER INSERT ON " + table + " BEGIN "
+					+ "DELETE FROM " + shadow + " WHERE rowid = new.rowid; " + copyNew + " END",
+				"CREATE TRIGGER " + getTriggerName(rebuild, "update") + " AFTER UPDATE ON " + table + " BEGIN "
+					+ "DELETE FROM " + shadow + " WHERE rowid = old.rowid OR rowid = new.rowid; " + copyNew + " END",
+				"CREATE TRIGGER " + getTriggerName(rebuild, "delete") + " AFTER DELETE ON " + table + " BEGIN "
+					+ "DELETE FROM " + shadow + " WHERE rowid = old.rowid; END",
+				"UPDATE " + MIGRATIONS_TABLE + " SET step = '" + Step.BACKFILL + "', error = NULL, "
+					+ "last_rowid = (SELECT ifnull(min(rowid), 1) - 1 FROM " + table + "), "
+					+ "max_rowid = (SELECT ifnull(max(rowid), 0) FROM " + table + ")" + getCondition(progress))));
+		
+		MigrationProgress started = getProgress(progress.getVersion(), progress.getTable());
+		progress.setStep(started.getStep());
+		progress.setLastRowid(started.getLastRowid());
+		progress.setMaxRowid(started.getMaxRowid());
+		progress.setError(null);
+	}
+	
+	/**
+	 * Copies next batch of rows not copied by triggers yet
+	 */
+	private void backfill(TableRebuild rebuild, MigrationProgress progress)
+	{
+		String table = quoteIdentifier(rebuild.getTable());
+		List<Map<String, String>> bound = check(provider.execute(new Query("SELECT max(rowid) AS upper FROM (SELECT rowid FROM "
+				+ table + " WHERE rowid > " + progress.getLastRowid() + " AND rowid <= " + progress.getMaxRowid()
+				+ " ORDER BY rowid LIMIT " + batchSize + ")"))).getData();
+		long upper = bound.isEmpty() || bound.get(0).get("upper") == null ?
+				progress.getMaxRowid() : Long.parseLong(bound.get(0).get("upper"));
+		
+		check(provider.executeInTransaction(Arrays.asList(
+				getCopyStatement(rebuild) + " WHERE rowid > " + progress.getLastRowid() + " AND rowid <= " + upper
+					+ " AND NOT EXISTS (SELECT 1 FROM " + quoteIdentifier(rebuild.getTable() + SHADOW_SUFFIX)
+					+ " WHERE rowid = " + table + ".rowid)",
+				"UPDATE " + MIGRATIONS_TABLE + " SET last_rowid = " + upper + getCondition(progress))));
+		
+		progress.setLastRowid(upper);
+	}
+	
+	/**
+	 * Replaces old table with the shadow one in a single transaction
+	 */
+	private void swap(TableRebuild rebuild, MigrationProgress progress)
+	{
+		List<String> statements = new ArrayList<String>();
+		statements.add("DROP TRIGGER IF EXISTS " + getTriggerName(rebuild, "insert"));
+		statements.add("DROP TRIGGER IF EXISTS " + getTriggerName(rebuild, "update"));
+		statements.add("DROP TRIGGER IF EXISTS " + getTriggerName(rebuild, "delete"));
+		statements.addAll(getSwapStatements(provider.getDatabase(), rebuild));
+		statements.add("UPDATE " + MIGRATIONS_TABLE + " SET step = '" + Step.DONE + "', error = NULL" + getCondition(progress));
+		
+		check(provider.executeInTransaction(statements));
+		progress.setStep(Step.DONE);
+	}
+	
+	/**
+	 * Drops old table and renames shadow one, indexes and triggers
+	 * of old table, e.g. ones of full text indexes or summary tables,
+	 * are dropped with it, so they are recreated on the new table
+	 */
+	private List<String> getSwapStatements(SQLiteDatabase database, TableRebuild rebuild)
+	{
+		List<String> statements = new ArrayList<String>();
+		statements.add("DROP TABLE " + quoteIdentifier(rebuild.getTable()));
+		statements.add("ALTER TABLE " + quoteIdentifier(rebuild.getTable() + SHADOW_SUFFIX) + " RENAME TO "
+				+ quoteIdentifier(rebuild.getTable()));
+		
+		String mirrorPrefix = rebuild.getTable() + MIRROR_TRIGGER_SUFFIX;
+		Cursor cursor = database.rawQuery("SELECT name, sql FROM sqlite_master WHERE type IN ('index', 'trigger') "
+				+ "AND tbl_name = ? AND sql IS NOT NULL ORDER BY type", new String[] { rebuild.getTable() });
+		try {
+			while (cursor.moveToNext())
+				if (cursor.getString(0).startsWith(mirrorPrefix) == false)
+					statements.add(cursor.getString(1));
+		} finally {
+			cursor.close();
+		}
+		
+		statements.addAll(rebuild.getStatementsAfterSwap());
+		return statements;
+	}
+	
+	private String getCopyStatement(TableRebuild rebuild)
+	{
+		StringBuilder columns = new StringBuilder("rowid"), values = new StringBuilder("rowid");
+		for (Map.Entry<String, String> column : rebuild.getColumns().entrySet()) {
+			columns.append(", ").append(quoteIdentifier(column.getKey()));
+			values.append(", ").append(column.getValue());
+		}
+		
+		return "INSERT INTO " + quoteIdentifier(rebuild.getTable() + SHADOW_SUFFIX) + " (" + columns + ") SELECT "
+				+ values + " FROM " + quoteIdentifier(rebuild.getTable());
+	}
+	
+	private String getTriggerName(TableRebuild rebuild, String operation) {
+		return quoteIdentifier(rebuild.getTable() + MIRROR_TRIGGER_SUFFIX + operation);
+	}
+	
+	private String getCondition(MigrationProgress progress) {
+		return " WHERE version = " + progress.getVersion() + " AND table_name = " + toSqlLiteral(progress.getTable());
+	}
+	
+	private synchronized TableRebuild getRebuild(MigrationProgress progress)
+	{
+		Migration migration = migrations.get(progress.getVersion());
+		if (migration == null)
+			return null;
+		
+		for (TableRebuild rebuild : migration.getTableRebuilds())
+			if (rebuild.getTable().equals(progress.getTable()))
+				return rebuild;
+		return null;
+	}
+	
+	private void notifyProgress(MigrationProgress progress)
+	{
+		Listener listener = this.listener;
+		if (listener != null)
+			listener.onProgress(progress);
+	}
+	
+	/**
+	 * Returns state of all recorded rebuilds ordered by version
+	 */
+	public List<MigrationProgress> getProgress()
+	{
+		List<MigrationProgress> result = new ArrayList<MigrationProgress>();
+		for (Map<String, String> row : check(provider.execute(new Query("SELECT * FROM " + MIGRATIONS_TABLE
+				+ " WHERE table_name != '' ORDER BY version, rowid"))).getData())
+		{
+			MigrationProgress progress = new MigrationProgress();
+			progress.setVersion(Integer.parseInt(row.get("version")));
+			progress.setTable(row.get("table_name"));
+			progress.setStep(Step.valueOf(row.get("step")));
+			progress.setLastRowid(row.get("last_rowid") != null ? Long.parseLong(row.get("last_rowid")) : 0);
+			progress.setMaxRowid(row.get("max_rowid") != null ? Long.parseLong(row.get("max_rowid")) : 0);
+			progress.setError(row.get("error"));
+			result.add(progress);
+		}
+		return result;
+	}
+	
+	private MigrationProgress getProgress(int version, String table)
+	{
+		for (MigrationProgress progress : getProgress())
+			if (progress.getVersion() == version && progress.getTable().equals(table))
+				return progress;
+		throw new IllegalStateException("Rebuild of " + table + " in migration " + version + " isn't recorded");
+	}
+	
+	/**
+	 * Returns true if no recorded rebuild is left to do
+	 */
+	public boolean isComplete()
+	{
+		if (provider.listTables().contains(MIGRATIONS_TABLE) == false)
+			return true;
+		
+		for (MigrationProgress progress : getProgress())
+			if (progress.getStep() != Step.DONE)
+				return false;
+		return true;
+	}
+	
+	private static QueryResult check(QueryResult result)
+	{
+		if (result.getStatus() != DatasourceProvider.SQL_SUCCESS)
+			throw new IllegalStateException(result.getDb() + ": " + result.getError());
+		return result;
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	public long getBatchDelay() {
+		return batchDelay;
+	}
+	public void setBatchDelay(long batchDelay) {
+		this.batchDelay = batchDelay;
+	}
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	synchronized boolean hasMigrations() {
+		return migrations.isEmpty() == false;
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+/**
+ * State of a table rebuild
+ */
+public class MigrationProgress
+{
+	public enum Step {
+		PENDING, BACKFILL, DONE
+	}
+	
+	private int version;
+	private String table;
+	private Step step;
+	private long lastRowid;
+	private long maxRowid;
+	
+	/**
+	 * Error which stopped the rebuild, it's retried on next resume
+	 */
+	private String error;
+	
+	public int getVersion() {
+		return version;
+	}
+	public void setVersion(int version) {
+		this.version = version;
+	}
+	public String getTable() {
+		return table;
+	}
+	public void setTable(String table) {
+		this.table = table;
+	}
+	public Step getStep() {
+		return step;
+	}
+	public void setStep(Step step) {
+		this.step = step;
+	}
+	public long getLastRowid() {
+		return lastRowid;
+	}
+	public void setLastRowid(long lastRowid) {
+		this.lastRowid = lastRowid;
+	}
+	public long getMaxRowid() {
+		return maxRowid;
+	}
+	public void setMaxRowid(long maxRowid) {
+		this.maxRowid = maxRowid;
+	}
+	public String getError() {
+		return error;
+	}
+	public void setError(String error) {
+		this.error = error;
+	}
+	
+	/**
+	 * Returns backfilled part of table from 0 to 1, estimated by rowid range
+	 */
+	public double getProgress()
+	{
+		switch (step) {
+			case DONE:
+				return 1;
+			case BACKFILL:
+				return lastRowid >= maxRowid ? 1 : Math.max(0, 1 - (double) (maxRowid - lastRowid) / Math.max(1, maxRowid));
+			default:
+				return 0;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "Version " + version + " rebuild of " + table + ": " + step
+				+ (step == Step.BACKFILL ? " " + Math.round(getProgress() * 100) + "%" : "")
+				+ (error != null ? ", error: " + error : "");
+	}
+}
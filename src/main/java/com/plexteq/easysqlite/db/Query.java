@@ -31,6 +31,11 @@
 
 package com.plexteq.easysqlite.db;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.CancellationSignal;
+
 /**
  * Contains data needed for query execution 
  * on SQLite engine 
@@ -41,6 +46,39 @@ public class Query
 	 * SQL query to execute
 	 */
 	private String sql;
+	
+	/**
+	 * Values bound to ? parameters (optional), queries
+	 * with arguments have to consist of a single statement
+	 */
+	private String[] args;
+	
+	/**
+	 * Execution limits, override provider defaults (optional)
+	 */
+	private QueryLimits limits;
+	
+	/**
+	 * Priority class, used when provider schedules queries
+	 */
+	private QueryPriority priority = QueryPriority.NORMAL;
+	
+	/**
+	 * Lets statements of a background query be committed in several
+	 * transactions, so it can give way to queries of higher priority
+	 */
+	private boolean splittable;
+	
+	/**
+	 * Set once query has been cancelled by the caller
+	 */
+	private volatile boolean cancelled;
+	
+	/**
+	 * Signals of currently running executions, query
+	 * may be executed against several databases at once
+	 */
+	private final List<CancellationSignal> cancellationSignals = new ArrayList<CancellationSignal>();
 
 	public Query() {
 	}
@@ -49,6 +87,11 @@ public class Query
 		this.sql = sql;
 	}
 	
+	public Query(String sql, String... args) {
+		this.sql = sql;
+		this.args = args;
+	}
+	
 	public String getSql() {
 		return sql;
 	}
@@ -56,4 +99,74 @@ public class Query
 	public void setSql(String sql) {
 		this.sql = sql;
 	}
+	
+	public String[] getArgs() {
+		return args;
+	}
+
+	public void setArgs(String[] args) {
+		this.args = args;
+	}
+	
+	public QueryLimits getLimits() {
+		return limits;
+	}
+
+	public void setLimits(QueryLimits limits) {
+		this.limits = limits;
+	}
+	
+	public QueryPriority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(QueryPriority priority) {
+		this.priority = priority;
+	}
+	
+	public boolean isSplittable() {
+		return splittable;
+	}
+	
+	/**
+	 * Marks multi-statement background query as one which doesn't need
+	 * to be atomic. Its statements are then committed in several
+	 * transactions when other queries wait, failure of a later
+	 * statement is reported as SQL_PARTIAL
+	 */
+	public void setSplittable(boolean splittable) {
+		this.splittable = splittable;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Cancels query, interrupting currently running SQLite
+	 * step if query is being executed. Query stays cancelled,
+	 * so any later execution of it is cancelled immediately
+	 */
+	public synchronized void cancel()
+	{
+		cancelled = true;
+		for (CancellationSignal cancellationSignal : cancellationSignals)
+			cancellationSignal.cancel();
+	}
+	
+	/**
+	 * Creates signal for an execution of this query
+	 */
+	synchronized CancellationSignal attachCancellationSignal()
+	{
+		CancellationSignal cancellationSignal = new CancellationSignal();
+		if (cancelled)
+			cancellationSignal.cancel();
+		cancellationSignals.add(cancellationSignal);
+		return cancellationSignal;
+	}
+	
+	synchronized void detachCancellationSignal(CancellationSignal cancellationSignal) {
+		cancellationSignals.remove(cancellationSignal);
+	}
 }
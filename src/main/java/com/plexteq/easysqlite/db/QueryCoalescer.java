@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical extraction queries running concurrently on one
+ * provider. First caller executes the query, callers arriving while
+ * it runs wait for it and get the same result. Results aren't kept
+ * once execution completes, so no caller ever gets a stale result
+ */
+public class QueryCoalescer
+{
+	/**
+	 * How often waiting callers check if their own query has been cancelled
+	 */
+	private static final long CANCELLATION_CHECK_INTERVAL = 50;
+	
+	private final ConcurrentMap<String, Execution> executions = new ConcurrentHashMap<String, Execution>();
+	
+	private final AtomicLong executedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	
+	/**
+	 * Executes query unless identical one is already running, in which
+	 * case waits for it. Result data is unmodifiable, every caller gets
+	 * its own copy of result sharing the same data. Callers whose query is
+	 * cancelled stop waiting, if query being waited for was cancelled
+	 * by its own caller, it is executed again. Only executions started
+	 * at the same write generation are joined, so a caller never gets
+	 * rows read before its own committed write
+	 */
+	QueryResult execute(Query query, QueryLimits limits, long generation, Executor executor)
+	{
+		String key = getKey(query, limits, generation);
+		
+		while (true)
+		{
+			Execution execution = new Execution(query);
+			Execution running = executions.putIfAbsent(key, execution);
+			
+			if (running == null)
+			{
+				executedCount.incrementAndGet();
+				try {
+					execution.result = freeze(executor.execute(query));
+				} finally {
+					executions.remove(key, execution);
+					execution.done.countDown();
+				}
+				return execution.result;
+			}
+			
+			try {
+				while (running.done.await(CANCELLATION_CHECK_INTERVAL, TimeUnit.MILLISECONDS) == false)
+					if (query.isCancelled())
+						return executor.execute(query);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return executor.execute(query);
+			}
+			
+			// failed with an exception or cancelled on behalf of other caller
+			if (running.result == null || running.result.getStatus() == DatasourceProvider.SQL_CANCELLED
+					&& running.query.isCancelled())
+				continue;
+			
+			coalescedCount.incrementAndGet();
+			return copy(running.result);
+		}
+	}
+	
+	/**
+	 * Returns number of queries actually executed
+	 */
+	public long getExecutedCount() {
+		return executedCount.get();
+	}
+	
+	/**
+	 * Returns number of queries served by result of identical running query
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+	
+	/**
+	 * Returns share of coalescable calls served without execution
+	 */
+	public double getCoalescedRatio()
+	{
+		long coalesced = coalescedCount.get(), total = coalesced + executedCount.get();
+		return total > 0 ? (double) coalesced / total : 0;
+	}
+	
+	public void resetCounters() {
+		executedCount.set(0);
+		coalescedCount.set(0);
+	}
+	
+	/**
+	 * Builds key from SQL with whitespace outside of literals collapsed,
+	 * bind arguments, limits, which affect result as well, and write
+	 * generation of provider at the time execution was requested
+	 */
+	static String getKey(Query query, QueryLimits limits, long generation)
+	{
+		String sql = query.getSql().trim();
+		StringBuilder key = new StringBuilder(sql.length() + 32);
+		
+		char quote = 0;
+		boolean whitespace = false;
+		for (int i = 0 ; i < sql.length() ; i++)
+		{
+			char c = sql.charAt(i);
+			if (quote == 0 && Character.isWhitespace(c)) {
+				whitespace = true;
+				continue;
+			}
+			
+			if (whitespace) {
+				key.append(' ');
+				whitespace = false;
+			}
+			
+			if (quote == 0 && (c == '\'' || c == '"' || c == '`'))
+				quote = c;
+			else if (c == quote)
+				quote = 0;
+			key.append(c);
+		}
+		
+		key.append('\u0000').append(generation).append('\u0000').append(limits.getTimeout()).append(':').append(limits.getMaxRows())
+				.append(':').append(limits.getMaxBytes());
+		
+		// lengths are prepended, so values containing separators can't collide
+		String[] args = query.getArgs();
+		if (args != null) {
+			for (String arg : args) {
+				if (arg == null)
+					key.append("\u0000n");
+				else
+					key.append('\u0000').append(arg.length()).append(':').append(arg);
+			}
+		}
+		
+		return key.toString();
+	}
+	
+	private static QueryResult freeze(QueryResult result)
+	{
+		List<Map<String, String>> data = new ArrayList<Map<String, String>>(result.getData().size());
+		for (Map<String, String> row : result.getData())
+			data.add(Collections.unmodifiableMap(row));
+		
+		result.setData(Collections.unmodifiableList(data));
+		return result;
+	}
+	
+	private static QueryResult copy(QueryResult result)
+	{
+		QueryResult copy = new QueryResult();
+		copy.setStatus(result.getStatus());
+		copy.setError(result.getError());
+		copy.setTimestamp(result.getTimestamp());
+		copy.setDuration(result.getDuration());
+		copy.setDb(result.getDb());
+		copy.setSize(result.getSize());
+		copy.setData(result.getData());
+		return copy;
+	}
+	
+	/**
+	 * Executes query when no identical one is running
+	 */
+	interface Executor
+	{
+		public QueryResult execute(Query query);
+	}
+	
+	private static class Execution
+	{
+		private final Query query;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile QueryResult result;
+		
+		private Execution(Query query) {
+			this.query = query;
+		}
+	}
+}
@@ -33,9 +33,13 @@ package com.plexteq.easysqlite.db;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Contains SQL helper methods
@@ -116,6 +120,85 @@ public class QueryHelper
             "commit", "rollback", "begin", "end",
             "reindex", "replace", "analyze");
 	
+	/**
+	 * Table name, possibly quoted or prefixed by schema
+	 */
+	private static final String TABLE_NAME = "(\"(?:[^\"]|\"\")+\"|`[^`]+`|\\[[^\\]]+\\]|[\\w$.]+)";
+	
+	private static final Pattern READ_TABLE = Pattern.compile(
+			"\\b(?:FROM|JOIN)\\s+" + TABLE_NAME, Pattern.CASE_INSENSITIVE);
+	
+	/**
+	 * Next table of comma separated FROM list, optionally aliased
+	 */
+	private static final Pattern NEXT_READ_TABLE = Pattern.compile(
+			"(?:\\s+(?:AS\\s+)?\\w+)?\\s*,\\s*" + TABLE_NAME, Pattern.CASE_INSENSITIVE);
+	
+	private static final Pattern WRITTEN_TABLE = Pattern.compile(
+			"\\s*(?:INSERT(?:\\s+OR\\s+\\w+)?\\s+INTO|REPLACE\\s+INTO|UPDATE(?:\\s+OR\\s+\\w+)?|DELETE\\s+FROM"
+			+ "|(?:CREATE|DROP|ALTER)\\s+TABLE(?:\\s+IF(?:\\s+NOT)?\\s+EXISTS)?)\\s+" + TABLE_NAME + ".*",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	
+	/**
+	 * Statements which don't change content of any table
+	 */
+	private static final Pattern NO_TABLE_WRITTEN = Pattern.compile(
+			"\\s*(?:SELECT|PRAGMA|ANALYZE|REINDEX|VACUUM|BEGIN|COMMIT|END|ROLLBACK|ATTACH|DETACH"
+			+ "|CREATE\\s+(?:UNIQUE\\s+)?INDEX|DROP\\s+INDEX)\\b.*",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	
+	/**
+	 * Returns lower case names of tables given query reads,
+	 * found after FROM and JOIN keywords, subqueries included
+	 */
+	public static Set<String> getReadTables(String sql)
+	{
+		Set<String> tables = new HashSet<String>();
+		Matcher table = READ_TABLE.matcher(sql);
+		while (table.find())
+		{
+			tables.add(normalizeTableName(table.group(1)));
+			
+			Matcher next = NEXT_READ_TABLE.matcher(sql);
+			next.region(table.end(), sql.length());
+			while (next.lookingAt()) {
+				tables.add(normalizeTableName(next.group(1)));
+				next.region(next.end(), sql.length());
+			}
+		}
+		return tables;
+	}
+	
+	/**
+	 * Returns lower case names of tables given statements change, null
+	 * if some of them can't be determined. Tables changed by triggers
+	 * aren't included
+	 */
+	public static Set<String> getWrittenTables(List<String> statements)
+	{
+		Set<String> tables = new HashSet<String>();
+		for (String statement : statements)
+		{
+			Matcher table = WRITTEN_TABLE.matcher(statement);
+			if (table.matches())
+				tables.add(normalizeTableName(table.group(1)));
+			else if (NO_TABLE_WRITTEN.matcher(statement).matches() == false)
+				return null;
+		}
+		return tables;
+	}
+	
+	private static String normalizeTableName(String name)
+	{
+		if (name.startsWith("\"") && name.endsWith("\""))
+			name = name.substring(1, name.length() - 1).replace("\"\"", "\"");
+		else if (name.startsWith("`") && name.endsWith("`") || name.startsWith("[") && name.endsWith("]"))
+			name = name.substring(1, name.length() - 1);
+		else if (name.indexOf('.') >= 0)
+			name = name.substring(name.lastIndexOf('.') + 1);
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+	
 	/**
 	 * Transforms QueryResult into a HashMap
 	 * @param queryResult
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+/**
+ * Contains limits applied to query execution,
+ * zero value means that limit is not set
+ */
+public class QueryLimits
+{
+	/**
+	 * Amount of milliseconds query is allowed to run
+	 * before being cancelled
+	 */
+	private long timeout;
+	
+	/**
+	 * Maximum number of rows materialized into resultset,
+	 * SELECT is limited in SQL, so rows past it aren't read
+	 */
+	private int maxRows;
+	
+	/**
+	 * Maximum approximate number of bytes materialized
+	 * into resultset, counted as UTF-16 size of values
+	 */
+	private long maxBytes;
+	
+	public QueryLimits() {
+	}
+	
+	public QueryLimits(long timeout, int maxRows, long maxBytes) {
+		this.timeout = timeout;
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Returns limits where every unset limit
+	 * is taken from given defaults
+	 */
+	public QueryLimits withDefaults(QueryLimits defaults)
+	{
+		if (defaults == null)
+			return this;
+		
+		return new QueryLimits(
+				timeout > 0 ? timeout : defaults.timeout,
+				maxRows > 0 ? maxRows : defaults.maxRows,
+				maxBytes > 0 ? maxBytes : defaults.maxBytes);
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	public int getMaxRows() {
+		return maxRows;
+	}
+	public void setMaxRows(int maxRows) {
+		this.maxRows = maxRows;
+	}
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+}
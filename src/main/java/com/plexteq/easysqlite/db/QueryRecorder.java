@@ -0,0 +1,461 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Appends executed queries to a compact binary log, which can be
+ * replayed by {@link QueryReplayer}. Each record contains start
+ * timestamp, thread, database, duration and status of execution
+ * and query SQL with its bind arguments. Records are serialized on
+ * the query thread and written by a background writer, so queries
+ * never wait for the file. Records exceeding the writer's queue are
+ * dropped. Records reach the file once buffer is full or on
+ * {@link #flush()} and {@link #close()}
+ */
+public class QueryRecorder implements Closeable
+{
+	private static final int MAGIC = 0x45535152;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * Records waiting for the writer, further ones are dropped
+	 */
+	private static final int MAX_PENDING = 10000;
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final File file;
+	private final ThreadPoolExecutor writer;
+	private final AtomicLong dropped = new AtomicLong();
+	
+	/**
+	 * Accessed by writer thread only
+	 */
+	private DataOutputStream output;
+	
+	/**
+	 * Opens log for appending, header is written to new logs only.
+	 * Existing log has to be of current format, record truncated
+	 * by a crash in the middle of a write is cut off
+	 */
+	public QueryRecorder(File file) throws IOException
+	{
+		this.file = file;
+		
+		boolean exists = file.length() > 0;
+		if (exists)
+			truncateTornRecord(file);
+		
+		output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+		if (exists == false) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+		}
+		
+		writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING),
+				ThreadHelper.newThreadFactory("easysqlite-recorder"), new RejectedExecutionHandler()
+		{
+			@Override
+			public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+			{
+				// flush waiting for its future learns it's been rejected
+				if (runnable instanceof Future)
+					((Future<?>) runnable).cancel(false);
+				else
+					dropped.incrementAndGet();
+			}
+		});
+	}
+	
+	private static void truncateTornRecord(File file) throws IOException
+	{
+		long end;
+		Reader reader = new Reader(file);
+		try {
+			while (reader.next() != null);
+			end = reader.getPosition();
+		} finally {
+			reader.close();
+		}
+		
+		if (end < file.length())
+		{
+			Log.w(QueryRecorder.class.getName(), "Cutting off truncated record of query log " + file);
+			RandomAccessFile log = new RandomAccessFile(file, "rw");
+			try {
+				log.setLength(end);
+			} finally {
+				log.close();
+			}
+		}
+	}
+	
+	/**
+	 * Appends execution of a query, failures to write disable
+	 * recorder rather than affecting query execution
+	 */
+	public void record(String database, String sql, long startTime, QueryResult result) {
+		record(database, sql, null, startTime, result);
+	}
+	
+	/**
+	 * Appends execution of a query with bind arguments, null
+	 * if query has none
+	 */
+	public void record(String database, String sql, String[] args, long startTime, QueryResult result)
+	{
+		if (writer.isShutdown())
+			return;
+		
+		final byte[] record;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 2 * sql.length());
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeLong(startTime);
+			data.writeUTF(Thread.currentThread().getName());
+			data.writeUTF(database);
+			data.writeLong(result.getDuration());
+			data.writeInt(result.getStatus());
+			writeString(data, sql);
+			
+			data.writeInt(args != null ? args.length : -1);
+			if (args != null) {
+				for (String arg : args) {
+					data.writeBoolean(arg != null);
+					if (arg != null)
+						writeString(data, arg);
+				}
+			}
+			record = bytes.toByteArray();
+		} catch (IOException e) {
+			// writeUTF of too long thread or database name
+			Log.w(LOG_TAG, "Error serializing query log record: " + e.getMessage());
+			return;
+		}
+		
+		writer.execute(new Runnable()
+		{
+			@Override
+			public void run() {
+				write(record);
+			}
+		});
+	}
+	
+	private void write(byte[] record)
+	{
+		if (output == null)
+			return;
+		
+		try {
+			output.write(record);
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Error writing query log " + file + ", recording stopped", e);
+			closeOutput();
+		}
+	}
+	
+	/**
+	 * Writes length prefixed UTF-8, writeUTF is limited to 64 KB
+	 */
+	private static void writeString(DataOutputStream data, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes(UTF8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+	
+	/**
+	 * Waits until records recorded so far are written to the file
+	 */
+	public void flush()
+	{
+		if (writer.isShutdown())
+			return;
+		
+		try {
+			writer.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try {
+						if (output != null)
+							output.flush();
+					} catch (IOException e) {
+						Log.w(LOG_TAG, "Error flushing query log " + file);
+					}
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.w(LOG_TAG, "Error flushing query log " + file, e.getCause());
+		} catch (CancellationException e) {
+			Log.w(LOG_TAG, "Query log " + file + " not flushed, writer queue is full");
+		}
+	}
+	
+	/**
+	 * Writes pending records and closes the file
+	 */
+	@Override
+	public void close()
+	{
+		if (writer.isShutdown())
+			return;
+		
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		closeOutput();
+	}
+	
+	private synchronized void closeOutput()
+	{
+		try {
+			if (output != null)
+				output.close();
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Error closing query log " + file);
+		}
+		output = null;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Returns number of records dropped because writer fell behind
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Recorded query execution
+	 */
+	public static class Entry
+	{
+		private long timestamp;
+		private String thread;
+		private String db;
+		private long duration;
+		private int status;
+		private String sql;
+		private String[] args;
+		
+		public long getTimestamp() {
+			return timestamp;
+		}
+		public String getThread() {
+			return thread;
+		}
+		public String getDb() {
+			return db;
+		}
+		public long getDuration() {
+			return duration;
+		}
+		public int getStatus() {
+			return status;
+		}
+		public String getSql() {
+			return sql;
+		}
+		public String[] getArgs() {
+			return args;
+		}
+	}
+	
+	/**
+	 * Reads log records sequentially
+	 */
+	public static class Reader implements Closeable
+	{
+		private final CountingInputStream counter;
+		private final DataInputStream input;
+		private final long length;
+		
+		/**
+		 * Offset of the end of last complete record
+		 */
+		private long position;
+		
+		public Reader(File file) throws IOException
+		{
+			length = file.length();
+			counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			input = new DataInputStream(counter);
+			try {
+				if (input.readInt() != MAGIC || input.readInt() != VERSION)
+					throw new IOException("Unsupported query log format " + file);
+			} catch (IOException e) {
+				input.close();
+				throw e instanceof EOFException ? new IOException("Unsupported query log format " + file) : e;
+			}
+			position = HEADER_SIZE;
+		}
+		
+		/**
+		 * Returns next record or null if log is over. Record truncated
+		 * by a crash in the middle of a write is treated as end of log
+		 */
+		public Entry next() throws IOException
+		{
+			Entry entry = new Entry();
+			try {
+				entry.timestamp = input.readLong();
+				entry.thread = input.readUTF();
+				entry.db = input.readUTF();
+				entry.duration = input.readLong();
+				entry.status = input.readInt();
+				
+				entry.sql = readString();
+				
+				int count = input.readInt();
+				if (count > length - counter.getCount())
+					return null;
+				if (count >= 0) {
+					entry.args = new String[count];
+					for (int i = 0 ; i < count ; i++)
+						entry.args[i] = input.readBoolean() ? readString() : null;
+				}
+			} catch (EOFException e) {
+				return null;
+			}
+			position = counter.getCount();
+			return entry;
+		}
+		
+		/**
+		 * Reads length prefixed string, length past the end
+		 * of the file means record has been truncated
+		 */
+		private String readString() throws IOException
+		{
+			int size = input.readInt();
+			if (size < 0)
+				throw new IOException("Corrupted query log record");
+			if (size > length - counter.getCount())
+				throw new EOFException();
+			
+			byte[] bytes = new byte[size];
+			input.readFully(bytes);
+			return new String(bytes, UTF8);
+		}
+		
+		long getPosition() {
+			return position;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Counts bytes read, so reader knows where complete records end
+	 */
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long count;
+		
+		CountingInputStream(InputStream input) {
+			super(input);
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			int value = super.read();
+			if (value >= 0)
+				count++;
+			return value;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int read = super.read(buffer, offset, length);
+			if (read > 0)
+				count += read;
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+		
+		long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Replays query log written by {@link QueryRecorder} against a
+ * database, normally a copy of the recorded one, to compare its
+ * latency and throughput with the recorded ones
+ */
+public class QueryReplayer
+{
+	private final String LOG_TAG = getClass().getName();
+	
+	private final DatasourceProvider provider;
+	
+	/**
+	 * Replay speed relative to recorded one, not
+	 * positive value replays as fast as possible
+	 */
+	private double speed = 1;
+	
+	/**
+	 * Maximum number of queries executed at once
+	 */
+	private int concurrency = 1;
+	
+	/**
+	 * Database whose records are replayed, all if null
+	 */
+	private String database;
+	
+	public QueryReplayer(DatasourceProvider provider) {
+		this.provider = provider;
+	}
+	
+	public ReplayReport replay(File log) throws IOException, InterruptedException
+	{
+		final ReplayReport report = new ReplayReport();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+				ThreadHelper.newThreadFactory("easysqlite-replay"));
+		final Semaphore inFlight = new Semaphore(concurrency);
+		
+		QueryRecorder.Reader reader = new QueryRecorder.Reader(log);
+		long replayStart = TimeHelper.nowMs(), firstTimestamp = -1, lastTimestamp = -1;
+		try
+		{
+			QueryRecorder.Entry entry;
+			while ((entry = reader.next()) != null)
+			{
+				if (database != null && database.equals(entry.getDb()) == false)
+					continue;
+				
+				if (firstTimestamp < 0)
+					firstTimestamp = entry.getTimestamp();
+				lastTimestamp = entry.getTimestamp();
+				
+				// keeps recorded pacing scaled by speed
+				if (speed > 0) {
+					long delay = replayStart + (long) ((entry.getTimestamp() - firstTimestamp) / speed) - TimeHelper.nowMs();
+					if (delay > 0)
+						Thread.sleep(delay);
+				}
+				
+				inFlight.acquire();
+				final QueryRecorder.Entry recorded = entry;
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try {
+							long executionStart = TimeHelper.nowMs();
+							QueryResult result = provider.execute(new Query(recorded.getSql(), recorded.getArgs()));
+							report.add(recorded, result, TimeHelper.nowMs() - executionStart);
+						} catch (Exception e) {
+							Log.w(LOG_TAG, "Error replaying query " + recorded.getSql());
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+		}
+		finally
+		{
+			reader.close();
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		
+		report.setRecordedTime(lastTimestamp - firstTimestamp);
+		report.setReplayTime(TimeHelper.nowMs() - replayStart);
+		return report;
+	}
+	
+	public double getSpeed() {
+		return speed;
+	}
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+	public int getConcurrency() {
+		return concurrency;
+	}
+	public void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+	public String getDatabase() {
+		return database;
+	}
+	public void setDatabase(String database) {
+		this.database = database;
+	}
+}
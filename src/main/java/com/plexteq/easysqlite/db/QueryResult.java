@@ -41,7 +41,10 @@ public class QueryResult
 {
 	/**
 	 * Query execution status
-	 * 0 - success, any other value means failure
+	 * 0 - success, 2 - truncated by row or byte limit,
+	 * 3 - cancelled or timed out, 4 - failed on some of the
+	 * databases or after part of statements was committed,
+	 * -1 - invalid query, any other value means failure
 	 */
 	private int status;
 	
@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits queries of a provider for execution by priority. Query is
+ * admitted only when no query of higher priority is waiting and
+ * limits of queries in flight, total and per priority, allow it
+ */
+public class QueryScheduler
+{
+	/**
+	 * How often waiting queries check if they have been cancelled
+	 */
+	private static final long CANCELLATION_CHECK_INTERVAL = 50;
+	
+	private static final int LANES = QueryPriority.values().length;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	
+	private final int[] waiting = new int[LANES];
+	private final int[] running = new int[LANES];
+	private final int[] maxRunning = new int[LANES];
+	private int maxConcurrent = 4;
+	
+	private final AtomicLongArray admitted = new AtomicLongArray(LANES);
+	private final AtomicLongArray waitTime = new AtomicLongArray(LANES);
+	private final AtomicLongArray maxWaitTime = new AtomicLongArray(LANES);
+	
+	public QueryScheduler()
+	{
+		for (int i = 0 ; i < LANES ; i++)
+			maxRunning[i] = Integer.MAX_VALUE;
+		maxRunning[QueryPriority.BACKGROUND.ordinal()] = 1;
+	}
+	
+	/**
+	 * Waits until query may be executed, returns false if
+	 * query has been cancelled or thread interrupted meanwhile
+	 */
+	boolean acquire(Query query)
+	{
+		int lane = query.getPriority().ordinal();
+		long waitStart = TimeHelper.nowMs();
+		
+		lock.lock();
+		try
+		{
+			waiting[lane]++;
+			try {
+				while (canRun(lane) == false) {
+					if (query.isCancelled())
+						return false;
+					released.await(CANCELLATION_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				waiting[lane]--;
+				
+				// lower priority queries may be waiting for this one to leave queue
+				released.signalAll();
+			}
+			
+			running[lane]++;
+		}
+		finally {
+			lock.unlock();
+		}
+		
+		long wait = TimeHelper.nowMs() - waitStart;
+		admitted.incrementAndGet(lane);
+		waitTime.addAndGet(lane, wait);
+		while (true) {
+			long max = maxWaitTime.get(lane);
+			if (wait <= max || maxWaitTime.compareAndSet(lane, max, wait))
+				break;
+		}
+		return true;
+	}
+	
+	void release(Query query)
+	{
+		lock.lock();
+		try {
+			running[query.getPriority().ordinal()]--;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private boolean canRun(int lane)
+	{
+		int total = 0;
+		for (int i = 0 ; i < LANES ; i++) {
+			if (i < lane && waiting[i] > 0)
+				return false;
+			total += running[i];
+		}
+		return total < maxConcurrent && running[lane] < maxRunning[lane];
+	}
+	
+	/**
+	 * Returns true if queries of higher priority
+	 * than given one are waiting or running
+	 */
+	boolean hasPrecedingQueries(QueryPriority priority)
+	{
+		lock.lock();
+		try {
+			for (int i = 0 ; i < priority.ordinal() ; i++)
+				if (waiting[i] > 0 || running[i] > 0)
+					return true;
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits up to given time until no query of higher
+	 * priority than given one is waiting or running
+	 */
+	void awaitPrecedingQueries(QueryPriority priority, long timeout) throws InterruptedException
+	{
+		long deadline = TimeHelper.nowMs() + timeout;
+		lock.lock();
+		try {
+			while (hasPrecedingQueries(priority)) {
+				long remaining = deadline - TimeHelper.nowMs();
+				if (remaining <= 0)
+					return;
+				released.await(remaining, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sets maximum number of queries executed at once
+	 */
+	public void setMaxConcurrent(int maxConcurrent)
+	{
+		lock.lock();
+		try {
+			this.maxConcurrent = maxConcurrent;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+	
+	/**
+	 * Sets maximum number of queries of given priority executed at once,
+	 * only background queries are limited by default, to one at a time
+	 */
+	public void setMaxRunning(QueryPriority priority, int maxRunning)
+	{
+		lock.lock();
+		try {
+			this.maxRunning[priority.ordinal()] = maxRunning;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getMaxRunning(QueryPriority priority) {
+		return maxRunning[priority.ordinal()];
+	}
+	
+	public int getWaitingCount(QueryPriority priority)
+	{
+		lock.lock();
+		try {
+			return waiting[priority.ordinal()];
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getRunningCount(QueryPriority priority)
+	{
+		lock.lock();
+		try {
+			return running[priority.ordinal()];
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns number of queries of given priority admitted for execution
+	 */
+	public long getAdmittedCount(QueryPriority priority) {
+		return admitted.get(priority.ordinal());
+	}
+	
+	/**
+	 * Returns total time queries of given priority waited in queue, ms
+	 */
+	public long getWaitTime(QueryPriority priority) {
+		return waitTime.get(priority.ordinal());
+	}
+	
+	public long getMaxWaitTime(QueryPriority priority) {
+		return maxWaitTime.get(priority.ordinal());
+	}
+	
+	public double getAverageWaitTime(QueryPriority priority)
+	{
+		long count = admitted.get(priority.ordinal());
+		return count > 0 ? (double) waitTime.get(priority.ordinal()) / count : 0;
+	}
+	
+	public void resetMetrics()
+	{
+		for (int i = 0 ; i < LANES ; i++) {
+			admitted.set(i, 0);
+			waitTime.set(i, 0);
+			maxWaitTime.set(i, 0);
+		}
+	}
+}
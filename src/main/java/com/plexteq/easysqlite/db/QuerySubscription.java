@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+/**
+ * Extraction query re-executed after writes through provider touched
+ * one of the tables it reads. Writes are debounced, query runs once
+ * per burst of writes, and listener receives only rows inserted,
+ * updated or removed since the previous execution. Tables changed by
+ * triggers are not detected, they can be added as dependencies
+ * explicitly, e.g. summary table of a source table
+ */
+public class QuerySubscription
+{
+	/**
+	 * Runs debounced re-executions of all subscriptions
+	 */
+	private static final ScheduledExecutorService scheduler =
+			Executors.newSingleThreadScheduledExecutor(ThreadHelper.newThreadFactory("easysqlite-subscriptions"));
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final SqliteDatasourceProviderImpl provider;
+	private final Query query;
+	private final String keyColumn;
+	private final Listener listener;
+	private final Set<String> tables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	private volatile long debounceDelay = 100;
+	private volatile boolean cancelled;
+	private final AtomicBoolean pending = new AtomicBoolean();
+	
+	/**
+	 * Rows of previous execution by key, accessed by scheduler thread only
+	 */
+	private Map<String, Map<String, String>> rows;
+	
+	/**
+	 * Receives changes of subscribed query, called on subscriptions thread
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called with all rows as inserted after first execution,
+		 * later only when rows have changed
+		 */
+		public void onChange(QuerySubscription subscription, RowDiff diff);
+		
+		/**
+		 * Called when re-execution fails or result is truncated by limits,
+		 * rows of previous execution are kept for the next diff. Result
+		 * lacking key column cancels subscription
+		 */
+		public void onError(QuerySubscription subscription, QueryResult result);
+	}
+	
+	QuerySubscription(SqliteDatasourceProviderImpl provider, Query query, String keyColumn, Listener listener)
+	{
+		this.provider = provider;
+		this.query = query;
+		this.keyColumn = keyColumn;
+		this.listener = listener;
+		this.tables.addAll(QueryHelper.getReadTables(query.getSql()));
+	}
+	
+	/**
+	 * Adds table whose changes cause re-execution
+	 */
+	public void addDependency(String table) {
+		tables.add(table.toLowerCase(Locale.ENGLISH));
+	}
+	
+	public Set<String> getDependencies() {
+		return Collections.unmodifiableSet(tables);
+	}
+	
+	/**
+	 * Schedules re-execution if query depends on one of given tables,
+	 * null means that changed tables are unknown
+	 */
+	void onTablesChanged(Set<String> changed)
+	{
+		if (changed == null) {
+			schedule(debounceDelay);
+			return;
+		}
+		
+		for (String table : changed) {
+			if (tables.contains(table)) {
+				schedule(debounceDelay);
+				return;
+			}
+		}
+	}
+	
+	void start() {
+		schedule(0);
+	}
+	
+	private void schedule(long delay)
+	{
+		if (cancelled || pending.compareAndSet(false, true) == false)
+			return;
+		
+		scheduler.schedule(new Runnable()
+		{
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private void refresh()
+	{
+		// writes from now on schedule another execution
+		pending.set(false);
+		if (cancelled)
+			return;
+		
+		try
+		{
+			QueryResult result = provider.execute(query);
+			if (result.getStatus() != DatasourceProvider.SQL_SUCCESS) {
+				listener.onError(this, result);
+				return;
+			}
+			
+			// rows have the same columns, so the first one is enough
+			List<Map<String, String>> data = result.getData();
+			if (data.isEmpty() == false && data.get(0).containsKey(keyColumn) == false) {
+				result.setStatus(DatasourceProvider.SQL_INVALID);
+				result.setError("Key column " + keyColumn + " is not in result of " + query.getSql());
+				cancel();
+				listener.onError(this, result);
+				return;
+			}
+			
+			Map<String, Map<String, String>> current = new LinkedHashMap<String, Map<String, String>>();
+			for (Map<String, String> row : data)
+				current.put(row.get(keyColumn), row);
+			
+			boolean first = rows == null;
+			RowDiff diff = diff(first ? Collections.<String, Map<String, String>>emptyMap() : rows, current);
+			rows = current;
+			
+			if (first || diff.isEmpty() == false)
+				listener.onChange(this, diff);
+		}
+		catch (Exception e)
+		{
+			Log.e(LOG_TAG, "Error refreshing subscription to " + query.getSql(), e);
+		}
+	}
+	
+	private static RowDiff diff(Map<String, Map<String, String>> previous, Map<String, Map<String, String>> current)
+	{
+		List<Map<String, String>> inserted = new ArrayList<Map<String, String>>();
+		List<Map<String, String>> updated = new ArrayList<Map<String, String>>();
+		List<Map<String, String>> removed = new ArrayList<Map<String, String>>();
+		
+		for (Map.Entry<String, Map<String, String>> row : current.entrySet()) {
+			Map<String, String> previousRow = previous.get(row.getKey());
+			if (previousRow == null)
+				inserted.add(row.getValue());
+			else if (previousRow.equals(row.getValue()) == false)
+				updated.add(row.getValue());
+		}
+		
+		for (Map.Entry<String, Map<String, String>> row : previous.entrySet())
+			if (current.containsKey(row.getKey()) == false)
+				removed.add(row.getValue());
+		
+		return new RowDiff(inserted, updated, removed);
+	}
+	
+	/**
+	 * Stops re-executions, the one already running completes
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+		provider.unsubscribe(this);
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public Query getQuery() {
+		return query;
+	}
+	
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+	
+	public long getDebounceDelay() {
+		return debounceDelay;
+	}
+	
+	/**
+	 * Sets time waited after a write before re-execution, writes
+	 * done meanwhile are covered by the same re-execution
+	 */
+	public void setDebounceDelay(long debounceDelay) {
+		this.debounceDelay = debounceDelay;
+	}
+}
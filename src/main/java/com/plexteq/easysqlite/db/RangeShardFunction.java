@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Assigns keys to shards by ranges. Shard i owns keys from
+ * boundary i - 1 (inclusive) to boundary i (exclusive), first
+ * and last shards are unbounded. Instances are immutable
+ */
+public class RangeShardFunction<K extends Comparable<? super K>> implements ShardFunction<K>
+{
+	/**
+	 * Sorted lower bounds of shards, except of the first one
+	 */
+	private final List<K> boundaries;
+	
+	public RangeShardFunction(List<K> boundaries)
+	{
+		for (int i = 1 ; i < boundaries.size() ; i++)
+			if (boundaries.get(i - 1).compareTo(boundaries.get(i)) >= 0)
+				throw new IllegalArgumentException("Boundaries must be sorted and distinct");
+		
+		this.boundaries = Collections.unmodifiableList(new ArrayList<K>(boundaries));
+	}
+	
+	@Override
+	public int getShard(K key, int shardCount)
+	{
+		int index = Collections.binarySearch(boundaries, key);
+		return index >= 0 ? index + 1 : -index - 1;
+	}
+	
+	/**
+	 * Returns number of shards ranges are defined for
+	 */
+	public int getShardCount() {
+		return boundaries.size() + 1;
+	}
+	
+	/**
+	 * Returns inclusive lower bound of shard, null if unbounded
+	 */
+	public K getLowerBound(int shard) {
+		return shard > 0 ? boundaries.get(shard - 1) : null;
+	}
+	
+	/**
+	 * Returns exclusive upper bound of shard, null if unbounded
+	 */
+	public K getUpperBound(int shard) {
+		return shard < boundaries.size() ? boundaries.get(shard) : null;
+	}
+	
+	/**
+	 * Returns function where given shard is split in two at
+	 * given boundary, keys above it go to shard + 1
+	 */
+	public RangeShardFunction<K> split(int shard, K boundary)
+	{
+		K lower = getLowerBound(shard), upper = getUpperBound(shard);
+		if ((lower != null && boundary.compareTo(lower) <= 0) || (upper != null && boundary.compareTo(upper) >= 0))
+			throw new IllegalArgumentException("Boundary " + boundary + " is outside of shard " + shard);
+		
+		List<K> result = new ArrayList<K>(boundaries);
+		result.add(shard, boundary);
+		return new RangeShardFunction<K>(result);
+	}
+	
+	public List<K> getBoundaries() {
+		return boundaries;
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+
+/**
+ * Row mapper factory which fills fields of target class using
+ * reflection. Fields are resolved once per class and column
+ * indexes once per column layout, so mapping a row costs only
+ * typed cursor reads and field assignments
+ */
+public class ReflectionRowMapperFactory<T> implements RowMapperFactory<T>
+{
+	private static final int TYPE_STRING = 0;
+	private static final int TYPE_INT = 1;
+	private static final int TYPE_LONG = 2;
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_DOUBLE = 4;
+	private static final int TYPE_FLOAT = 5;
+	private static final int TYPE_BOOLEAN = 6;
+	private static final int TYPE_BLOB = 7;
+	
+	private final Constructor<T> constructor;
+	
+	/**
+	 * Mapped fields by column name
+	 */
+	private final Map<String, Field> fields = new HashMap<String, Field>();
+	
+	public ReflectionRowMapperFactory(Class<T> type)
+	{
+		try {
+			constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(type.getName() + " has no default constructor", e);
+		}
+		
+		for (Class<?> c = type ; c != null && c != Object.class ; c = c.getSuperclass())
+		{
+			for (Field field : c.getDeclaredFields())
+			{
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || getTypeCode(field.getType()) < 0)
+					continue;
+				
+				Column column = field.getAnnotation(Column.class);
+				String columnName = column != null ? column.value() : field.getName();
+				
+				// fields of subclass take precedence over hidden ones
+				if (fields.containsKey(columnName) == false) {
+					field.setAccessible(true);
+					fields.put(columnName, field);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public RowMapper<T> bind(String[] columnNames)
+	{
+		List<Field> boundFields = new ArrayList<Field>();
+		List<Integer> boundIndexes = new ArrayList<Integer>();
+		
+		for (int i = 0 ; i < columnNames.length ; i++) {
+			Field field = fields.get(columnNames[i]);
+			if (field != null) {
+				boundFields.add(field);
+				boundIndexes.add(i);
+			}
+		}
+		
+		final Field[] targets = boundFields.toArray(new Field[boundFields.size()]);
+		final int[] indexes = new int[targets.length];
+		final int[] types = new int[targets.length];
+		final boolean[] primitives = new boolean[targets.length];
+		for (int i = 0 ; i < targets.length ; i++) {
+			indexes[i] = boundIndexes.get(i);
+			types[i] = getTypeCode(targets[i].getType());
+			primitives[i] = targets[i].getType().isPrimitive();
+		}
+		
+		return new RowMapper<T>()
+		{
+			@Override
+			public T mapRow(Cursor cursor)
+			{
+				try {
+					T row = constructor.newInstance();
+					for (int i = 0 ; i < targets.length ; i++)
+						setField(row, targets[i], types[i], primitives[i], cursor, indexes[i]);
+					return row;
+				} catch (Exception e) {
+					throw new IllegalStateException("Error mapping row to " + constructor.getDeclaringClass().getName(), e);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Assigns cursor value to field, primitive fields are
+	 * set with typed setters, so values aren't boxed
+	 */
+	private static void setField(Object row, Field field, int type, boolean primitive, Cursor cursor, int index)
+			throws IllegalAccessException
+	{
+		if (cursor.isNull(index)) {
+			// primitives keep their default value
+			if (primitive == false)
+				field.set(row, null);
+			return;
+		}
+		
+		switch (type)
+		{
+			case TYPE_STRING:
+				field.set(row, cursor.getString(index));
+				break;
+			case TYPE_INT:
+				if (primitive)
+					field.setInt(row, cursor.getInt(index));
+				else
+					field.set(row, Integer.valueOf(cursor.getInt(index)));
+				break;
+			case TYPE_LONG:
+				if (primitive)
+					field.setLong(row, cursor.getLong(index));
+				else
+					field.set(row, Long.valueOf(cursor.getLong(index)));
+				break;
+			case TYPE_SHORT:
+				if (primitive)
+					field.setShort(row, cursor.getShort(index));
+				else
+					field.set(row, Short.valueOf(cursor.getShort(index)));
+				break;
+			case TYPE_DOUBLE:
+				if (primitive)
+					field.setDouble(row, cursor.getDouble(index));
+				else
+					field.set(row, Double.valueOf(cursor.getDouble(index)));
+				break;
+			case TYPE_FLOAT:
+				if (primitive)
+					field.setFloat(row, cursor.getFloat(index));
+				else
+					field.set(row, Float.valueOf(cursor.getFloat(index)));
+				break;
+			case TYPE_BOOLEAN:
+				if (primitive)
+					field.setBoolean(row, cursor.getInt(index) != 0);
+				else
+					field.set(row, Boolean.valueOf(cursor.getInt(index) != 0));
+				break;
+			case TYPE_BLOB:
+				field.set(row, cursor.getBlob(index));
+				break;
+		}
+	}
+	
+	/**
+	 * Returns type code of supported field type or -1
+	 */
+	private static int getTypeCode(Class<?> type)
+	{
+		if (type == String.class)
+			return TYPE_STRING;
+		if (type == int.class || type == Integer.class)
+			return TYPE_INT;
+		if (type == long.class || type == Long.class)
+			return TYPE_LONG;
+		if (type == short.class || type == Short.class)
+			return TYPE_SHORT;
+		if (type == double.class || type == Double.class)
+			return TYPE_DOUBLE;
+		if (type == float.class || type == Float.class)
+			return TYPE_FLOAT;
+		if (type == boolean.class || type == Boolean.class)
+			return TYPE_BOOLEAN;
+		if (type == byte[].class)
+			return TYPE_BLOB;
+		return -1;
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.Arrays;
+
+/**
+ * Compares latency and throughput of replayed queries with
+ * recorded ones. Durations are the ones reported by QueryResult,
+ * latency additionally includes replayed query wall-clock time
+ */
+public class ReplayReport
+{
+	private long[] recordedDurations = new long[64];
+	private long[] replayedDurations = new long[64];
+	private long[] replayedLatencies = new long[64];
+	private int count;
+	
+	/**
+	 * Number of queries whose replay status differs from recorded one
+	 */
+	private int statusMismatches;
+	
+	/**
+	 * Time between first and last recorded query
+	 */
+	private long recordedTime;
+	
+	/**
+	 * Wall-clock time replay took
+	 */
+	private long replayTime;
+	
+	synchronized void add(QueryRecorder.Entry recorded, QueryResult replayed, long latency)
+	{
+		if (count == recordedDurations.length) {
+			recordedDurations = Arrays.copyOf(recordedDurations, count * 2);
+			replayedDurations = Arrays.copyOf(replayedDurations, count * 2);
+			replayedLatencies = Arrays.copyOf(replayedLatencies, count * 2);
+		}
+		
+		recordedDurations[count] = recorded.getDuration();
+		replayedDurations[count] = replayed.getDuration();
+		replayedLatencies[count] = latency;
+		count++;
+		
+		if (recorded.getStatus() != replayed.getStatus())
+			statusMismatches++;
+	}
+	
+	public synchronized int getCount() {
+		return count;
+	}
+	
+	public synchronized int getStatusMismatches() {
+		return statusMismatches;
+	}
+	
+	/**
+	 * Returns recorded duration percentile, e.g. 0.99 for p99
+	 */
+	public synchronized long getRecordedPercentile(double percentile) {
+		return percentile(recordedDurations, percentile);
+	}
+	
+	public synchronized long getReplayedPercentile(double percentile) {
+		return percentile(replayedDurations, percentile);
+	}
+	
+	public synchronized long getLatencyPercentile(double percentile) {
+		return percentile(replayedLatencies, percentile);
+	}
+	
+	/**
+	 * Returns recorded throughput in queries per second
+	 */
+	public synchronized double getRecordedThroughput() {
+		return recordedTime > 0 ? count * 1000.0 / recordedTime : 0;
+	}
+	
+	/**
+	 * Returns replay throughput in queries per second
+	 */
+	public synchronized double getReplayedThroughput() {
+		return replayTime > 0 ? count * 1000.0 / replayTime : 0;
+	}
+	
+	private long percentile(long[] values, double percentile)
+	{
+		if (count == 0)
+			return 0;
+		
+		long[] sorted = Arrays.copyOf(values, count);
+		Arrays.sort(sorted);
+		
+		int index = (int) Math.ceil(percentile * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+	
+	public synchronized long getRecordedTime() {
+		return recordedTime;
+	}
+	synchronized void setRecordedTime(long recordedTime) {
+		this.recordedTime = recordedTime;
+	}
+	public synchronized long getReplayTime() {
+		return replayTime;
+	}
+	synchronized void setReplayTime(long replayTime) {
+		this.replayTime = replayTime;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%d queries, %d status mismatches; duration p50/p95/p99 recorded %d/%d/%d ms, "
+				+ "replayed %d/%d/%d ms; replay latency p50/p95/p99 %d/%d/%d ms; throughput recorded %.1f q/s, replayed %.1f q/s",
+				count, statusMismatches,
+				getRecordedPercentile(0.5), getRecordedPercentile(0.95), getRecordedPercentile(0.99),
+				getReplayedPercentile(0.5), getReplayedPercentile(0.95), getReplayedPercentile(0.99),
+				getLatencyPercentile(0.5), getLatencyPercentile(0.95), getLatencyPercentile(0.99),
+				getRecordedThroughput(), getReplayedThroughput());
+	}
+}
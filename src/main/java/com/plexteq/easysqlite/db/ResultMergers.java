@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+
+/**
+ * Contains standard resultset mergers
+ */
+public class ResultMergers
+{
+	/**
+	 * Aggregates which can be computed from per-database aggregates
+	 */
+	public enum Aggregate
+	{
+		COUNT,
+		SUM,
+		MIN,
+		MAX;
+	}
+	
+	/**
+	 * Concatenates resultsets in order of databases
+	 */
+	public static ResultMerger concat()
+	{
+		return new ResultMerger()
+		{
+			@Override
+			public List<Map<String, String>> merge(List<List<Map<String, String>>> resultsets)
+			{
+				List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+				for (List<Map<String, String>> resultset : resultsets)
+					result.addAll(resultset);
+				return result;
+			}
+		};
+	}
+	
+	/**
+	 * Merges resultsets already sorted by given column into
+	 * one sorted resultset, query must contain matching ORDER BY
+	 */
+	public static ResultMerger sorted(final String column, final boolean ascending)
+	{
+		return new ResultMerger()
+		{
+			@Override
+			public List<Map<String, String>> merge(List<List<Map<String, String>>> resultsets)
+			{
+				PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, resultsets.size()),
+						new HeadComparator(resultsets, column, ascending));
+				
+				int total = 0;
+				for (int i = 0 ; i < resultsets.size() ; i++) {
+					total += resultsets.get(i).size();
+					if (resultsets.get(i).isEmpty() == false)
+						heads.add(new int[] { i, 0 });
+				}
+				
+				List<Map<String, String>> result = new ArrayList<Map<String, String>>(total);
+				while (heads.isEmpty() == false)
+				{
+					int[] head = heads.poll();
+					List<Map<String, String>> resultset = resultsets.get(head[0]);
+					result.add(resultset.get(head[1]));
+					
+					if (++head[1] < resultset.size())
+						heads.add(head);
+				}
+				
+				return result;
+			}
+		};
+	}
+	
+	/**
+	 * Re-aggregates per-database aggregates, columns which
+	 * aren't listed in given map are treated as group keys
+	 */
+	public static ResultMerger aggregate(final Map<String, Aggregate> aggregates)
+	{
+		return new ResultMerger()
+		{
+			@Override
+			public List<Map<String, String>> merge(List<List<Map<String, String>>> resultsets)
+			{
+				Map<List<String>, Map<String, String>> groups = new LinkedHashMap<List<String>, Map<String, String>>();
+				
+				for (List<Map<String, String>> resultset : resultsets)
+				{
+					for (Map<String, String> row : resultset)
+					{
+						List<String> key = new ArrayList<String>();
+						for (Entry<String, String> column : row.entrySet())
+							if (aggregates.containsKey(column.getKey()) == false)
+								key.add(column.getValue());
+						
+						Map<String, String> group = groups.get(key);
+						if (group == null) {
+							groups.put(key, new LinkedHashMap<String, String>(row));
+							continue;
+						}
+						
+						for (Entry<String, Aggregate> aggregate : aggregates.entrySet()) {
+							String column = aggregate.getKey();
+							group.put(column, combine(aggregate.getValue(), group.get(column), row.get(column)));
+						}
+					}
+				}
+				
+				return new ArrayList<Map<String, String>>(groups.values());
+			}
+		};
+	}
+	
+	private static String combine(Aggregate aggregate, String left, String right)
+	{
+		// NULLs are ignored, same as SQL aggregates do
+		if (left == null)
+			return right;
+		if (right == null)
+			return left;
+		
+		switch (aggregate)
+		{
+			case MIN:
+				return compareValues(left, right) <= 0 ? left : right;
+			case MAX:
+				return compareValues(left, right) >= 0 ? left : right;
+			default:
+				try {
+					return String.valueOf(Long.parseLong(left) + Long.parseLong(right));
+				} catch (NumberFormatException e) {
+					return String.valueOf(Double.parseDouble(left) + Double.parseDouble(right));
+				}
+		}
+	}
+	
+	/**
+	 * Compares values numerically if both are numbers, as strings
+	 * otherwise. NULLs go first, same as in SQLite ordering
+	 */
+	public static int compareValues(String left, String right)
+	{
+		if (left == null || right == null)
+			return left == null ? (right == null ? 0 : -1) : 1;
+		
+		Double leftNumber = parseNumber(left), rightNumber = parseNumber(right);
+		if (leftNumber != null && rightNumber != null)
+			return leftNumber.compareTo(rightNumber);
+		
+		return left.compareTo(right);
+	}
+	
+	private static Double parseNumber(String value)
+	{
+		try {
+			return Double.valueOf(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Compares current rows of resultsets, ties are
+	 * resolved by resultset order to keep merge stable
+	 */
+	private static class HeadComparator implements Comparator<int[]>
+	{
+		private final List<List<Map<String, String>>> resultsets;
+		private final String column;
+		private final boolean ascending;
+		
+		public HeadComparator(List<List<Map<String, String>>> resultsets, String column, boolean ascending) {
+			this.resultsets = resultsets;
+			this.column = column;
+			this.ascending = ascending;
+		}
+		
+		@Override
+		public int compare(int[] left, int[] right)
+		{
+			int result = compareValues(
+					resultsets.get(left[0]).get(left[1]).get(column),
+					resultsets.get(right[0]).get(right[1]).get(column));
+			
+			if (result == 0)
+				return left[0] - right[0];
+			return ascending ? result : -result;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import static com.plexteq.easysqlite.db.DatabaseHelper.quoteIdentifier;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Enforces retention policies of provider tables. Rows are deleted
+ * in batches, each in its own short transaction, so writers are
+ * never held off for long and journal stays small. Before each batch
+ * deletion pauses while foreground writes wait for the write lock
+ */
+public class RetentionManager
+{
+	private final String LOG_TAG = getClass().getName();
+	
+	private final SqliteDatasourceProviderImpl provider;
+	private final List<RetentionPolicy> policies = new CopyOnWriteArrayList<RetentionPolicy>();
+	
+	private int batchSize = 500;
+	private long batchDelay = 10;
+	
+	/**
+	 * Longest pause before a batch, deletion continues
+	 * afterwards even if writers are still waiting
+	 */
+	private long maxPause = 1000;
+	
+	/**
+	 * Runs incremental vacuum and WAL checkpoint after rows have been
+	 * deleted, vacuum frees pages only if auto_vacuum is INCREMENTAL
+	 */
+	private boolean reclaimSpace;
+	
+	private final Object runLock = new Object();
+	private ScheduledExecutorService scheduler;
+	private volatile RetentionReport lastReport;
+	
+	RetentionManager(SqliteDatasourceProviderImpl provider) {
+		this.provider = provider;
+	}
+	
+	public void addPolicy(RetentionPolicy policy)
+	{
+		if (policy.getMaxAge() > 0 && policy.getColumn() == null)
+			throw new IllegalArgumentException("Maximum age of " + policy.getTable() + " requires timestamp column");
+		policies.add(policy);
+	}
+	
+	public void removePolicy(RetentionPolicy policy) {
+		policies.remove(policy);
+	}
+	
+	public List<RetentionPolicy> getPolicies() {
+		return policies;
+	}
+	
+	/**
+	 * Enforces policies periodically on a background thread
+	 */
+	public synchronized void start(long period, TimeUnit unit)
+	{
+		stop();
+		scheduler = Executors.newSingleThreadScheduledExecutor(ThreadHelper.newThreadFactory("easysqlite-retention"));
+		scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					Log.d(LOG_TAG, "Retention of " + provider.getDatabaseName() + ": " + RetentionManager.this.run());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					Log.e(LOG_TAG, "Error enforcing retention of " + provider.getDatabaseName(), e);
+				}
+			}
+		}, 0, period, unit);
+	}
+	
+	/**
+	 * Stops periodic enforcement, batch being deleted is completed
+	 */
+	public synchronized void stop()
+	{
+		if (scheduler != null)
+			scheduler.shutdownNow();
+		scheduler = null;
+	}
+	
+	/**
+	 * Enforces all policies once on calling thread
+	 */
+	public RetentionReport run() throws InterruptedException
+	{
+		synchronized (runLock) {
+			return enforce();
+		}
+	}
+	
+	private RetentionReport enforce() throws InterruptedException
+	{
+		RetentionReport report = new RetentionReport();
+		report.setStartTime(TimeHelper.nowMs());
+		
+		for (RetentionPolicy policy : policies)
+		{
+			try {
+				if (policy.getMaxAge() > 0)
+					delete(policy, getAgeCondition(policy), report);
+				if (policy.getMaxRows() > 0)
+					delete(policy, getRowsCondition(policy), report);
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				Log.e(LOG_TAG, "Error enforcing retention of table " + policy.getTable(), e);
+				report.addError(policy.getTable(), e.getMessage());
+			}
+		}
+		
+		if (reclaimSpace && report.getTotalDeletedRows() > 0) {
+			reclaimSpace();
+			report.setSpaceReclaimed(true);
+		}
+		
+		report.setDuration(TimeHelper.nowMs() - report.getStartTime());
+		lastReport = report;
+		return report;
+	}
+	
+	/**
+	 * Deletes rows matching condition batch by batch
+	 */
+	private void delete(RetentionPolicy policy, String condition, RetentionReport report) throws InterruptedException
+	{
+		String table = quoteIdentifier(policy.getTable());
+		String sql = "DELETE FROM " + table + " WHERE rowid IN (SELECT rowid FROM " + table
+				+ " WHERE " + condition + " LIMIT " + batchSize + ")";
+		
+		while (true)
+		{
+			report.addPausedTime(pause());
+			
+			int deleted = provider.executeUpdateDelete(sql);
+			report.addDeletedRows(policy.getTable(), deleted);
+			if (deleted < batchSize)
+				return;
+			
+			Thread.sleep(batchDelay);
+		}
+	}
+	
+	/**
+	 * Waits while other writers are queued for the write lock
+	 */
+	private long pause() throws InterruptedException
+	{
+		long pauseStart = TimeHelper.nowMs();
+		while (provider.getWriteLock().hasQueuedThreads() && TimeHelper.nowMs() - pauseStart < maxPause)
+			Thread.sleep(Math.max(1, batchDelay));
+		
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		return TimeHelper.nowMs() - pauseStart;
+	}
+	
+	private String getAgeCondition(RetentionPolicy policy)
+	{
+		TimeUnit unit = policy.getTimestampUnit();
+		long cutoff = unit.convert(TimeHelper.nowMs(), TimeUnit.MILLISECONDS)
+				- unit.convert(policy.getMaxAge(), policy.getMaxAgeUnit());
+		return quoteIdentifier(policy.getColumn()) + " < " + cutoff;
+	}
+	
+	/**
+	 * Returns condition matching rows older than the oldest row to keep,
+	 * nothing matches while table doesn't exceed the limit
+	 */
+	private String getRowsCondition(RetentionPolicy policy)
+	{
+		String column = policy.getColumn() != null ? quoteIdentifier(policy.getColumn()) : "rowid";
+		return column + " < (SELECT " + column + " FROM " + quoteIdentifier(policy.getTable()) + " ORDER BY "
+				+ column + " DESC LIMIT 1 OFFSET " + (policy.getMaxRows() - 1) + ")";
+	}
+	
+	/**
+	 * Runs under write lock and counts as a write,
+	 * so concurrent snapshots restart instead of copying
+	 * pages being moved
+	 */
+	private void reclaimSpace()
+	{
+		// restarting WAL lets its file be overwritten from the beginning
+		provider.executeMaintenance(Arrays.asList("PRAGMA incremental_vacuum", "PRAGMA wal_checkpoint(RESTART)"));
+	}
+	
+	/**
+	 * Returns report of the last completed run or null
+	 */
+	public RetentionReport getLastReport() {
+		return lastReport;
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	public long getBatchDelay() {
+		return batchDelay;
+	}
+	public void setBatchDelay(long batchDelay) {
+		this.batchDelay = batchDelay;
+	}
+	public long getMaxPause() {
+		return maxPause;
+	}
+	public void setMaxPause(long maxPause) {
+		this.maxPause = maxPause;
+	}
+	public boolean isReclaimSpace() {
+		return reclaimSpace;
+	}
+	public void setReclaimSpace(boolean reclaimSpace) {
+		this.reclaimSpace = reclaimSpace;
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retention rule of a table, rows are deleted when they
+ * are older than maximum age or exceed maximum row count.
+ * Both limits may be set, zero value means limit is not set
+ */
+public class RetentionPolicy
+{
+	private String table;
+	
+	/**
+	 * Column holding row timestamp, used for maximum age and for
+	 * ordering rows when maximum row count is enforced. Rows are
+	 * ordered by rowid if not set
+	 */
+	private String column;
+	
+	/**
+	 * Unit of timestamps stored in column,
+	 * seconds as in rest of the library by default
+	 */
+	private TimeUnit timestampUnit = TimeUnit.SECONDS;
+	
+	private long maxAge;
+	private TimeUnit maxAgeUnit = TimeUnit.SECONDS;
+	
+	/**
+	 * Number of newest rows kept, rows sharing timestamp
+	 * with the oldest kept row are kept as well
+	 */
+	private long maxRows;
+	
+	public RetentionPolicy() {
+	}
+	
+	public RetentionPolicy(String table, String column) {
+		this.table = table;
+		this.column = column;
+	}
+	
+	/**
+	 * Keeps rows with timestamp not older than given age
+	 */
+	public static RetentionPolicy maxAge(String table, String column, long maxAge, TimeUnit unit)
+	{
+		RetentionPolicy policy = new RetentionPolicy(table, column);
+		policy.setMaxAge(maxAge, unit);
+		return policy;
+	}
+	
+	/**
+	 * Keeps given number of rows with highest rowid
+	 */
+	public static RetentionPolicy maxRows(String table, long maxRows)
+	{
+		RetentionPolicy policy = new RetentionPolicy(table, null);
+		policy.setMaxRows(maxRows);
+		return policy;
+	}
+	
+	public String getTable() {
+		return table;
+	}
+	public void setTable(String table) {
+		this.table = table;
+	}
+	public String getColumn() {
+		return column;
+	}
+	public void setColumn(String column) {
+		this.column = column;
+	}
+	public TimeUnit getTimestampUnit() {
+		return timestampUnit;
+	}
+	public void setTimestampUnit(TimeUnit timestampUnit) {
+		this.timestampUnit = timestampUnit;
+	}
+	public long getMaxAge() {
+		return maxAge;
+	}
+	public TimeUnit getMaxAgeUnit() {
+		return maxAgeUnit;
+	}
+	public void setMaxAge(long maxAge, TimeUnit unit) {
+		this.maxAge = maxAge;
+		this.maxAgeUnit = unit;
+	}
+	public long getMaxRows() {
+		return maxRows;
+	}
+	public void setMaxRows(long maxRows) {
+		this.maxRows = maxRows;
+	}
+}
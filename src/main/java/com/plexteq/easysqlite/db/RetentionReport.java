@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of one retention run
+ */
+public class RetentionReport
+{
+	private final Map<String, Long> deletedRows = new LinkedHashMap<String, Long>();
+	private final Map<String, String> errors = new LinkedHashMap<String, String>();
+	
+	private long startTime;
+	private long duration;
+	private int batches;
+	private long pausedTime;
+	private boolean spaceReclaimed;
+	
+	void addDeletedRows(String table, long rows)
+	{
+		Long deleted = deletedRows.get(table);
+		deletedRows.put(table, (deleted != null ? deleted : 0) + rows);
+		batches++;
+	}
+	
+	void addError(String table, String error) {
+		errors.put(table, error);
+	}
+	
+	void addPausedTime(long pausedTime) {
+		this.pausedTime += pausedTime;
+	}
+	
+	/**
+	 * Returns number of deleted rows per table
+	 */
+	public Map<String, Long> getDeletedRows() {
+		return Collections.unmodifiableMap(deletedRows);
+	}
+	
+	public long getDeletedRows(String table)
+	{
+		Long deleted = deletedRows.get(table);
+		return deleted != null ? deleted : 0;
+	}
+	
+	public long getTotalDeletedRows()
+	{
+		long total = 0;
+		for (Long deleted : deletedRows.values())
+			total += deleted;
+		return total;
+	}
+	
+	/**
+	 * Returns deletion rate in rows per second, time spent
+	 * paused for foreground writes excluded
+	 */
+	public double getRowsPerSecond()
+	{
+		long active = duration - pausedTime;
+		return active > 0 ? getTotalDeletedRows() * 1000.0 / active : 0;
+	}
+	
+	/**
+	 * Returns errors per table, tables which failed are skipped
+	 * until the next run
+	 */
+	public Map<String, String> getErrors() {
+		return Collections.unmodifiableMap(errors);
+	}
+	
+	public long getStartTime() {
+		return startTime;
+	}
+	void setStartTime(long startTime) {
+		this.startTime = startTime;
+	}
+	public long getDuration() {
+		return duration;
+	}
+	void setDuration(long duration) {
+		this.duration = duration;
+	}
+	public int getBatches() {
+		return batches;
+	}
+	public long getPausedTime() {
+		return pausedTime;
+	}
+	public boolean isSpaceReclaimed() {
+		return spaceReclaimed;
+	}
+	void setSpaceReclaimed(boolean spaceReclaimed) {
+		this.spaceReclaimed = spaceReclaimed;
+	}
+	
+	@Override
+	public String toString() {
+		return "Deleted " + getTotalDeletedRows() + " rows " + deletedRows + " in " + batches + " batches, "
+				+ duration + " ms (" + pausedTime + " ms paused), " + Math.round(getRowsPerSecond()) + " rows/s";
+	}
+}
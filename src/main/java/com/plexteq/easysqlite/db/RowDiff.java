@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows of a subscribed query changed since its previous execution,
+ * rows are matched by subscription key column
+ */
+public class RowDiff
+{
+	private final List<Map<String, String>> inserted;
+	private final List<Map<String, String>> updated;
+	
+	/**
+	 * Removed rows as they were seen by previous execution
+	 */
+	private final List<Map<String, String>> removed;
+	
+	public RowDiff(List<Map<String, String>> inserted, List<Map<String, String>> updated,
+			List<Map<String, String>> removed)
+	{
+		this.inserted = Collections.unmodifiableList(inserted);
+		this.updated = Collections.unmodifiableList(updated);
+		this.removed = Collections.unmodifiableList(removed);
+	}
+	
+	public boolean isEmpty() {
+		return inserted.isEmpty() && updated.isEmpty() && removed.isEmpty();
+	}
+	
+	public List<Map<String, String>> getInserted() {
+		return inserted;
+	}
+	public List<Map<String, String>> getUpdated() {
+		return updated;
+	}
+	public List<Map<String, String>> getRemoved() {
+		return removed;
+	}
+	
+	@Override
+	public String toString() {
+		return inserted.size() + " inserted, " + updated.size() + " updated, " + removed.size() + " removed";
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
+
+/**
+ * Provides cached row mapper factories for classes
+ */
+public class RowMappers
+{
+	private static final String LOG_TAG = RowMappers.class.getName();
+	
+	/**
+	 * Suffix of factories generated by row mapper processor
+	 */
+	public static final String GENERATED_FACTORY_SUFFIX = "_RowMapperFactory";
+	
+	private static final ConcurrentHashMap<Class<?>, RowMapperFactory<?>> factories =
+			new ConcurrentHashMap<Class<?>, RowMapperFactory<?>>();
+	
+	/**
+	 * Returns factory for given class, generated one is used
+	 * if class is annotated with {@link RowMapped}, reflection
+	 * based one otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> RowMapperFactory<T> forClass(Class<T> type)
+	{
+		RowMapperFactory<T> factory = (RowMapperFactory<T>) factories.get(type);
+		if (factory == null) {
+			factory = cached(createFactory(type));
+			RowMapperFactory<T> existing = (RowMapperFactory<T>) factories.putIfAbsent(type, factory);
+			if (existing != null)
+				factory = existing;
+		}
+		
+		return factory;
+	}
+	
+	/**
+	 * Wraps factory so that mapper bound to a column
+	 * layout is reused for every query of that layout
+	 */
+	public static <T> RowMapperFactory<T> cached(final RowMapperFactory<T> factory)
+	{
+		return new RowMapperFactory<T>()
+		{
+			private final ConcurrentHashMap<List<String>, RowMapper<T>> mappers =
+					new ConcurrentHashMap<List<String>, RowMapper<T>>();
+			
+			@Override
+			public RowMapper<T> bind(String[] columnNames)
+			{
+				List<String> layout = Arrays.asList(columnNames);
+				RowMapper<T> mapper = mappers.get(layout);
+				if (mapper == null) {
+					mapper = factory.bind(columnNames);
+					mappers.putIfAbsent(layout, mapper);
+				}
+				return mapper;
+			}
+		};
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> RowMapperFactory<T> createFactory(Class<T> type)
+	{
+		try {
+			Class<?> generated = Class.forName(type.getName() + GENERATED_FACTORY_SUFFIX, true, type.getClassLoader());
+			return (RowMapperFactory<T>) generated.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			return new ReflectionRowMapperFactory<T>(type);
+		} catch (Exception e) {
+			Log.w(LOG_TAG, "Error instantiating generated row mapper for " + type.getName() + ", using reflection");
+			return new ReflectionRowMapperFactory<T>(type);
+		}
+	}
+}
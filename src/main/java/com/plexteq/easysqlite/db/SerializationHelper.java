@@ -31,46 +31,63 @@
 
 package com.plexteq.easysqlite.db;
 
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
-import org.json.JSONObject;
-
 public class SerializationHelper
 {
+	private static final MapCodec JSON_CODEC = new JsonMapCodec();
+	private static final MapCodec BINARY_CODEC = new BinaryMapCodec();
+	
+	/**
+	 * Codec used for serialization, JSON by default to stay
+	 * readable by applications which don't know binary format
+	 */
+	private static volatile MapCodec codec = JSON_CODEC;
+	
 	/**
-	 * Serializes Map<String, String> to a json string
+	 * Sets codec used by {@link #serializeMap(Map)}, values written
+	 * by JSON codec are still read regardless of this setting
+	 */
+	public static void setMapCodec(MapCodec codec) {
+		SerializationHelper.codec = codec != null ? codec : JSON_CODEC;
+	}
+	
+	public static MapCodec getMapCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Serializes Map<String, String> to a string using configured codec
 	 * @param map
 	 * @return
 	 */
 	public static String serializeMap(Map<String, String> map)
 	{
-		return new JSONObject(map).toString();
+		return codec.encode(map);
 	}
 	
 	/**
-	 * Deserializes json string that represents Map<String, String> to such Map object
-	 * @param json
-	 * @return
+	 * Deserializes string that represents Map<String, String> to such Map object,
+	 * JSON objects are recognized by leading brace, anything else is decoded by
+	 * configured codec or binary one, if configured codec is JSON
+	 * @param value
+	 * @return map or null if value is malformed
 	 */
-	public static Map<String, String> deserializeMap(String json)
+	public static Map<String, String> deserializeMap(String value)
 	{
-		Map<String, String> result;
+		if (value == null)
+			return null;
+		
+		MapCodec decoder;
+		if (value.trim().startsWith("{"))
+			decoder = JSON_CODEC;
+		else
+			decoder = codec instanceof JsonMapCodec ? BINARY_CODEC : codec;
 		
 		try {
-			JSONObject jsonObject = new JSONObject(json);
-			result = new HashMap<String, String>(jsonObject.length());
-			
-			Iterator<?> keys = jsonObject.keys();
-			while (keys.hasNext()) {
-				String key = keys.next().toString();
-				result.put(key, jsonObject.getString(key));
-			}
+			return decoder.decode(value);
 		} catch (Exception e) {
 			return null;
 		}
-		
-		return result;
 	}
 }
@@ -0,0 +1,519 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import static com.plexteq.easysqlite.db.DatabaseHelper.quoteIdentifier;
+import static com.plexteq.easysqlite.db.DatabaseHelper.toSqlLiteral;
+import static com.plexteq.easysqlite.db.QueryHelper.getQueryType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.util.Log;
+
+import com.plexteq.easysqlite.db.QueryHelper.QueryType;
+
+/**
+ * Logical table partitioned by key across several databases. Statements
+ * for a single key are routed to the database owning it, statements
+ * spanning keys are executed against every shard
+ */
+public class ShardedTable<K>
+{
+	private static final String ROWID_COLUMN = "easysqlite_rowid";
+	
+	/**
+	 * Limits of internal queries, provider defaults must not truncate them
+	 */
+	private static final QueryLimits UNLIMITED = new QueryLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final DatabaseManager manager;
+	private final String table;
+	private final String keyColumn;
+	
+	/**
+	 * Current shard databases and function,
+	 * replaced at once when shard is split
+	 */
+	private volatile Routing<K> routing;
+	
+	/**
+	 * Held shared by writes and exclusively while switching routing,
+	 * so no write goes to a shard which is no longer owning its key
+	 */
+	private final ReentrantReadWriteLock routingLock = new ReentrantReadWriteLock();
+	
+	public ShardedTable(DatabaseManager manager, String table, String keyColumn,
+			List<String> databases, ShardFunction<K> function)
+	{
+		if (databases.isEmpty())
+			throw new IllegalArgumentException("At least one shard database is required");
+		if (function instanceof RangeShardFunction && ((RangeShardFunction<?>) function).getShardCount() != databases.size())
+			throw new IllegalArgumentException("Number of ranges doesn't match number of shard databases");
+		
+		this.manager = manager;
+		this.table = table;
+		this.keyColumn = keyColumn;
+		this.routing = new Routing<K>(databases, function);
+	}
+	
+	public String getTable() {
+		return table;
+	}
+	
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+	
+	public List<String> getDatabases() {
+		return routing.databases;
+	}
+	
+	public ShardFunction<K> getShardFunction() {
+		return routing.function;
+	}
+	
+	/**
+	 * Returns index of shard owning given key
+	 */
+	public int getShard(K key)
+	{
+		Routing<K> current = routing;
+		return current.function.getShard(key, current.databases.size());
+	}
+	
+	/**
+	 * Returns provider of database owning given key
+	 */
+	public DatasourceProvider getProvider(K key)
+	{
+		Routing<K> current = routing;
+		return manager.getDatabaseProvider(current.databases.get(current.function.getShard(key, current.databases.size())));
+	}
+	
+	/**
+	 * Executes query touching rows of a single key
+	 * against the shard owning that key
+	 */
+	public QueryResult execute(K key, Query query)
+	{
+		if (getQueryType(query) != QueryType.QUERY_OTHER)
+			return getProvider(key).execute(query);
+		
+		routingLock.readLock().lock();
+		try {
+			return getProvider(key).execute(query);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Executes query against all shards and merges results
+	 */
+	public FanOutResult executeAll(Query query, ResultMerger merger, int parallelism)
+	{
+		if (getQueryType(query) != QueryType.QUERY_OTHER)
+			return manager.executeAll(routing.databases, query, merger, parallelism);
+		
+		routingLock.readLock().lock();
+		try {
+			return manager.executeAll(routing.databases, query, merger, parallelism);
+		} finally {
+			routingLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Splits range shard in two at given boundary, moving keys above
+	 * it to given new database. Rows are copied in batches while the
+	 * shard keeps serving traffic, changes made meanwhile are tracked
+	 * by triggers and replayed. Writes to the table are only blocked
+	 * while the last of the changes is replayed and routing switched.
+	 * Moved rows are purged from source shard afterwards, so until then
+	 * queries executed against all shards may see them twice. From the
+	 * last replay until the purge ends, writes to moved rows reaching
+	 * the source shard without this table's routing, e.g. directly
+	 * through its provider, are rejected by guard triggers
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized boolean splitShard(int shard, K boundary, String newDatabase, int batchSize)
+	{
+		Routing<K> current = routing;
+		if (current.function instanceof RangeShardFunction == false)
+			throw new IllegalStateException("Only range sharded tables can be split");
+		if (current.databases.contains(newDatabase))
+			throw new IllegalArgumentException("Database " + newDatabase + " is already a shard");
+		
+		RangeShardFunction<?> function = (RangeShardFunction<?>) current.function;
+		ShardFunction<K> splitFunction = (ShardFunction<K>) ((RangeShardFunction<Comparable<Object>>) function)
+				.split(shard, (Comparable<Object>) boundary);
+		
+		DatasourceProvider source = manager.getDatabaseProvider(current.databases.get(shard));
+		DatasourceProvider target = manager.getDatabaseProvider(newDatabase);
+		
+		Object upperBound = function.getUpperBound(shard);
+		String range = getRange("", boundary, upperBound);
+		
+		long splitStart = TimeHelper.nowMs();
+		boolean targetCreated = false, switched = false;
+		try
+		{
+			TableLayout layout = getTableLayout(source);
+			createTargetTable(source, target);
+			targetCreated = true;
+			createChangeLog(source);
+			
+			long copied = copyRows(source, target, layout, range, batchSize);
+			
+			// catching up with changes made while copying
+			while (replayChangeLog(source, target, layout, range, batchSize) >= batchSize);
+			
+			routingLock.writeLock().lock();
+			try {
+				// moved rows can't change any more, so the last replay is complete
+				createGuard(source, boundary, upperBound);
+				while (replayChangeLog(source, target, layout, range, batchSize) > 0);
+				
+				List<String> databases = new ArrayList<String>(current.databases);
+				databases.add(shard + 1, newDatabase);
+				routing = new Routing<K>(databases, splitFunction);
+				switched = true;
+			} finally {
+				routingLock.writeLock().unlock();
+			}
+			
+			dropChangeLog(source);
+			purgeRows(source, range, batchSize);
+			dropGuard(source);
+			
+			Log.i(LOG_TAG, "Split shard " + shard + " of " + table + " into " + newDatabase + ", copied "
+					+ copied + " rows in " + (TimeHelper.nowMs() - splitStart) + " ms");
+			return true;
+		}
+		catch (Exception e)
+		{
+			Log.e(LOG_TAG, "Error splitting shard " + shard + " of " + table, e);
+			try {
+				dropChangeLog(source);
+			} catch (Exception dropError) {
+				Log.w(LOG_TAG, "Error dropping change log of " + table);
+			}
+			
+			// once routing is switched, rows left in source belong to new shard
+			if (switched == false) {
+				try {
+					dropGuard(source);
+				} catch (Exception dropError) {
+					Log.w(LOG_TAG, "Error dropping split guard of " + table);
+				}
+			} else {
+				Log.w(LOG_TAG, "Moved rows of " + table + " left in " + current.databases.get(shard)
+						+ ", writes to them are rejected");
+			}
+			
+			// rows copied to a shard which isn't routed to are removed with the table
+			if (targetCreated && switched == false) {
+				try {
+					check(target.execute(new Query("DROP TABLE IF EXISTS " + quoteIdentifier(table))));
+				} catch (Exception dropError) {
+					Log.w(LOG_TAG, "Error dropping " + table + " from " + newDatabase);
+				}
+			}
+			return false;
+		}
+	}
+	
+	private TableLayout getTableLayout(DatasourceProvider source)
+	{
+		TableLayout layout = new TableLayout();
+		int integerKeys = 0, keys = 0;
+		
+		for (Map<String, String> column : select(source, "PRAGMA table_info(" + quoteIdentifier(table) + ")"))
+		{
+			layout.columns.add(column.get("name"));
+			if ("0".equals(column.get("pk")) == false) {
+				keys++;
+				if ("INTEGER".equalsIgnoreCase(column.get("type")))
+					integerKeys++;
+			}
+		}
+		
+		// INTEGER PRIMARY KEY column is an alias of rowid, copied with other columns
+		layout.rowidAlias = keys == 1 && integerKeys == 1;
+		return layout;
+	}
+	
+	private void createTargetTable(DatasourceProvider source, DatasourceProvider target)
+	{
+		if (target.listTables().contains(table))
+			throw new IllegalStateException("Table " + table + " already exists in target database");
+		
+		List<String> statements = new ArrayList<String>();
+		for (Map<String, String> row : select(source, "SELECT sql FROM sqlite_master WHERE tbl_name = "
+				+ toSqlLiteral(table) + " AND type IN ('table', 'index') AND sql IS NOT NULL ORDER BY type DESC"))
+			statements.add(row.get("sql"));
+		
+		check(target.executeInTransaction(statements));
+	}
+	
+	private void createChangeLog(DatasourceProvider source)
+	{
+		String log = quoteIdentifier(table + "_split_log"), quotedTable = quoteIdentifier(table);
+		
+		dropChangeLog(source);
+		check(source.executeInTransaction(Arrays.asList(
+				"CREATE TABLE " + log + " (id INTEGER PRIMARY KEY AUTOINCREMENT, row_id INTEGER NOT NULL)",
+				"CREATE TRIGGER " + quoteIdentifier(table + "_split_insert") + " AFTER INSERT ON " + quotedTable
+					+ " BEGIN INSERT INTO " + log + " (row_id) VALUES (new.rowid); END",
+				"CREATE TRIGGER " + quoteIdentifier(table + "_split_update") + " AFTER UPDATE ON " + quotedTable
+					+ " BEGIN INSERT INTO " + log + " (row_id) VALUES (old.rowid);"
+					+ " INSERT INTO " + log + " (row_id) VALUES (new.rowid); END",
+				"CREATE TRIGGER " + quoteIdentifier(table + "_split_delete") + " AFTER DELETE ON " + quotedTable
+					+ " BEGIN INSERT INTO " + log + " (row_id) VALUES (old.rowid); END")));
+	}
+	
+	/**
+	 * Condition matching key of given row in moved range
+	 */
+	private String getRange(String row, Object boundary, Object upperBound)
+	{
+		String key = row + quoteIdentifier(keyColumn);
+		String range = key + " >= " + toSqlLiteral(boundary);
+		if (upperBound != null)
+			range += " AND " + key + " < " + toSqlLiteral(upperBound);
+		return range;
+	}
+	
+	/**
+	 * Creates triggers rejecting writes to moved rows, except
+	 * deletes of purge which marks its transactions in a table
+	 */
+	private void createGuard(DatasourceProvider source, Object boundary, Object upperBound)
+	{
+		String purge = quoteIdentifier(table + "_split_purge"), quotedTable = quoteIdentifier(table);
+		String unmarked = " AND NOT EXISTS (SELECT 1 FROM " + purge + ")";
+		String reject = " BEGIN SELECT RAISE(ABORT, " + toSqlLiteral("Rows of " + table + " are being moved to another shard")
+				+ "); END";
+		
+		dropGuard(source);
+		check(source.executeInTransaction(Arrays.asList(
+				"CREATE TABLE " + purge + " (id INTEGER)",
+				"CREATE TRIGGER " + quoteIdentifier(table + "_split_guard_insert") + " BEFORE INSERT ON " + quotedTable
+					+ " WHEN " + getRange("new.", boundary, upperBound) + unmarked + reject,
+				"CREATE TRIGGER " + quoteIdentifier(table + "_split_guard_update") + " BEFORE UPDATE ON " + quotedTable
+					+ " WHEN (" + getRange("old.", boundary, upperBound) + " OR " + getRange("new.", boundary, upperBound)
+					+ ")" + unmarked + reject,
+				"CREATE TRIGGER " + quoteIdentifier(table + "_split_guard_delete") + " BEFORE DELETE ON " + quotedTable
+					+ " WHEN " + getRange("old.", boundary, upperBound) + unmarked + reject)));
+	}
+	
+	private void dropGuard(DatasourceProvider source)
+	{
+		check(source.executeInTransaction(Arrays.asList(
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(table + "_split_guard_insert"),
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(table + "_split_guard_update"),
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(table + "_split_guard_delete"),
+				"DROP TABLE IF EXISTS " + quoteIdentifier(table + "_split_purge"))));
+	}
+	
+	private void dropChangeLog(DatasourceProvider source)
+	{
+		check(source.executeInTransaction(Arrays.asList(
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(table + "_split_insert"),
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(table + "_split_update"),
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(table + "_split_delete"),
+				"DROP TABLE IF EXISTS " + quoteIdentifier(table + "_split_log"))));
+	}
+	
+	/**
+	 * Copies rows in given range to target in batches ordered by rowid
+	 */
+	private long copyRows(DatasourceProvider source, DatasourceProvider target, TableLayout layout,
+			String range, int batchSize)
+	{
+		long copied = 0;
+		String lastRowid = String.valueOf(Long.MIN_VALUE);
+		
+		while (true)
+		{
+			List<Map<String, String>> rows = select(source, getCopyQuery(layout)
+					+ " WHERE rowid > " + lastRowid + " AND " + range + " ORDER BY rowid LIMIT " + batchSize);
+			if (rows.isEmpty())
+				return copied;
+			
+			check(target.executeInTransaction(getInsertStatements(layout, rows)));
+			
+			copied += rows.size();
+			lastRowid = rows.get(rows.size() - 1).get(ROWID_COLUMN);
+		}
+	}
+	
+	/**
+	 * Re-copies rows changed since they were copied, returns number of
+	 * processed change log entries
+	 */
+	private int replayChangeLog(DatasourceProvider source, DatasourceProvider target, TableLayout layout,
+			String range, int batchSize)
+	{
+		List<Map<String, String>> changes = select(source, "SELECT id, row_id FROM "
+				+ quoteIdentifier(table + "_split_log") + " ORDER BY id LIMIT " + batchSize);
+		if (changes.isEmpty())
+			return 0;
+		
+		Set<String> rowids = new LinkedHashSet<String>();
+		for (Map<String, String> change : changes)
+			rowids.add(change.get("row_id"));
+		String rowidList = join(rowids);
+		
+		// rows keep their rowids in target, so changed ones are replaced by current state
+		List<String> statements = new ArrayList<String>();
+		statements.add("DELETE FROM " + quoteIdentifier(table) + " WHERE rowid IN (" + rowidList + ")");
+		statements.addAll(getInsertStatements(layout, select(source, getCopyQuery(layout)
+				+ " WHERE rowid IN (" + rowidList + ") AND " + range)));
+		check(target.executeInTransaction(statements));
+		
+		check(source.executeInTransaction(Collections.singletonList("DELETE FROM " + quoteIdentifier(table + "_split_log")
+				+ " WHERE id <= " + changes.get(changes.size() - 1).get("id"))));
+		return changes.size();
+	}
+	
+	private void purgeRows(DatasourceProvider source, String range, int batchSize)
+	{
+		while (true)
+		{
+			List<Map<String, String>> rows = select(source, "SELECT rowid AS " + ROWID_COLUMN + " FROM "
+					+ quoteIdentifier(table) + " WHERE " + range + " LIMIT " + batchSize);
+			if (rows.isEmpty())
+				return;
+			
+			Set<String> rowids = new LinkedHashSet<String>();
+			for (Map<String, String> row : rows)
+				rowids.add(row.get(ROWID_COLUMN));
+			
+			// marker lets deletes through guard triggers, it's never seen outside of the transaction
+			String purge = quoteIdentifier(table + "_split_purge");
+			check(source.executeInTransaction(Arrays.asList(
+					"INSERT INTO " + purge + " (id) VALUES (1)",
+					"DELETE FROM " + quoteIdentifier(table) + " WHERE rowid IN (" + join(rowids) + ")",
+					"DELETE FROM " + purge)));
+		}
+	}
+	
+	/**
+	 * Selects rowid and every column as SQL literal,
+	 * so rows can be inserted into other database as is
+	 */
+	private String getCopyQuery(TableLayout layout)
+	{
+		StringBuilder query = new StringBuilder("SELECT rowid AS ").append(ROWID_COLUMN);
+		for (int i = 0 ; i < layout.columns.size() ; i++)
+			query.append(", quote(").append(quoteIdentifier(layout.columns.get(i))).append(") AS c").append(i);
+		
+		return query.append(" FROM ").append(quoteIdentifier(table)).toString();
+	}
+	
+	private List<String> getInsertStatements(TableLayout layout, List<Map<String, String>> rows)
+	{
+		StringBuilder columns = new StringBuilder(layout.rowidAlias ? "" : "rowid");
+		for (String column : layout.columns) {
+			if (columns.length() > 0)
+				columns.append(", ");
+			columns.append(quoteIdentifier(column));
+		}
+		
+		List<String> statements = new ArrayList<String>(rows.size());
+		for (Map<String, String> row : rows)
+		{
+			StringBuilder values = new StringBuilder(layout.rowidAlias ? "" : row.get(ROWID_COLUMN));
+			for (int i = 0 ; i < layout.columns.size() ; i++) {
+				if (values.length() > 0)
+					values.append(", ");
+				values.append(row.get("c" + i));
+			}
+			
+			statements.add("INSERT INTO " + quoteIdentifier(table) + " (" + columns + ") VALUES (" + values + ")");
+		}
+		
+		return statements;
+	}
+	
+	private static List<Map<String, String>> select(DatasourceProvider provider, String sql)
+	{
+		Query query = new Query(sql);
+		query.setLimits(UNLIMITED);
+		return check(provider.execute(query)).getData();
+	}
+	
+	private static QueryResult check(QueryResult result)
+	{
+		if (result.getStatus() != DatasourceProvider.SQL_SUCCESS)
+			throw new IllegalStateException(result.getDb() + ": " + result.getError());
+		return result;
+	}
+	
+	private static String join(Set<String> values)
+	{
+		StringBuilder result = new StringBuilder();
+		for (String value : values) {
+			if (result.length() > 0)
+				result.append(',');
+			result.append(value);
+		}
+		return result.toString();
+	}
+	
+	private static class Routing<K>
+	{
+		private final List<String> databases;
+		private final ShardFunction<K> function;
+		
+		public Routing(List<String> databases, ShardFunction<K> function) {
+			this.databases = Collections.unmodifiableList(new ArrayList<String>(databases));
+			this.function = function;
+		}
+	}
+	
+	private static class TableLayout
+	{
+		private final List<String> columns = new ArrayList<String>();
+		private boolean rowidAlias;
+	}
+}
@@ -33,42 +33,419 @@ package com.plexteq.easysqlite.db;
 
 import static com.plexteq.easysqlite.db.QueryHelper.getQueryType;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.Log;
 
 import com.plexteq.easysqlite.db.QueryHelper.QueryType;
 
 public class SqliteDatasourceProviderImpl implements DatasourceProvider
 {
+	/**
+	 * Cancels queries which exceeded their timeout, shared by all providers
+	 */
+	private static final ScheduledExecutorService timeoutScheduler =
+			Executors.newSingleThreadScheduledExecutor(ThreadHelper.newThreadFactory("easysqlite-timeout"));
+	
+	/**
+	 * Longest time splittable background query waits for queries
+	 * of higher priority after committing part of its statements
+	 */
+	private static final long MAX_YIELD_WAIT = 200;
+	
+	/**
+	 * Byte limited SELECT is read in chunks growing from this many
+	 * rows, so SQLite stops soon after the limit is reached. Chunks
+	 * are restarted when database is written in between, after too
+	 * many restarts result is read in a single pass
+	 */
+	private static final int FIRST_CHUNK_ROWS = 64;
+	private static final int MAX_CHUNK_RESTARTS = 3;
+	
+	private Context ctx;
 	private SQLiteOpenHelper helper;
 	private SQLiteDatabase database;
 	
 	private final String LOG_TAG = getClass().getName();
 	private String databaseName;
 	
+	/**
+	 * If true, database is opened directly in read-only
+	 * mode, bypassing SQLiteOpenHelper writable setup
+	 */
+	private final boolean readOnly;
+	
+	/**
+	 * Limits applied to queries which don't set their own
+	 */
+	private volatile QueryLimits defaultLimits = new QueryLimits();
+	
+	/**
+	 * Serializes writes issued through provider, so maintenance
+	 * tasks can exclude writers for a short period of time. Lock is
+	 * fair, so a writer releasing it to yield can't barge ahead of
+	 * writers already waiting
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock(true);
+	
+	/**
+	 * Incremented after every write transaction, lets
+	 * long running readers detect concurrent changes
+	 */
+	private volatile long writeGeneration;
+	
+	/**
+	 * Records executed queries if set
+	 */
+	private volatile QueryRecorder recorder;
+	
+	/**
+	 * Coalesces identical concurrent extraction queries if enabled
+	 */
+	private final QueryCoalescer coalescer = new QueryCoalescer();
+	private volatile boolean coalescing;
+	
+	private RetentionManager retentionManager;
+	private BlobStore blobStore;
+	private StorageAnalyzer storageAnalyzer;
+	
+	/**
+	 * Admits queries for execution by priority if enabled
+	 */
+	private final QueryScheduler scheduler = new QueryScheduler();
+	private volatile boolean scheduling;
+	
+	/**
+	 * Migrations applied when database is opened, registered before that
+	 */
+	private final MigrationEngine migrationEngine = new MigrationEngine(this);
+	
+	private final List<QuerySubscription> subscriptions = new CopyOnWriteArrayList<QuerySubscription>();
+	
+	/**
+	 * Set by {@link #close()}, closed provider doesn't reopen database
+	 */
+	private volatile boolean closed;
+	
 	public SqliteDatasourceProviderImpl(Context ctx, String databaseName) {
+		this(ctx, databaseName, false);
+	}
+	
+	/**
+	 * Database isn't opened here, it happens lazily on first use
+	 * or when {@link #open()} is called explicitly
+	 */
+	public SqliteDatasourceProviderImpl(Context ctx, String databaseName, boolean readOnly) {
+		this.ctx = ctx;
 		this.databaseName = databaseName;
-		helper = new DatabaseHandler(databaseName, ctx, null);
-		database = helper.getWritableDatabase();
+		this.readOnly = readOnly;
+	}
+	
+	@Override
+	public void open() {
+		getDatabase();
+	}
+	
+	@Override
+	public boolean isReadOnly() {
+		return readOnly;
 	}
 	
 	@Override
-	public void close()
+	public QueryLimits getDefaultLimits() {
+		return defaultLimits;
+	}
+	
+	@Override
+	public void setDefaultLimits(QueryLimits defaultLimits) {
+		this.defaultLimits = defaultLimits != null ? defaultLimits : new QueryLimits();
+	}
+	
+	/**
+	 * Returns opened database, opening it on first call
+	 */
+	protected synchronized SQLiteDatabase getDatabase()
 	{
-		database.close();
-		helper.close();
+		if (closed)
+			throw new IllegalStateException("Database " + databaseName + " is closed");
+		if (database != null)
+			return database;
+		
+		long openStart = TimeHelper.nowMs();
+		migrationEngine.setOpened();
+		
+		if (readOnly) {
+			database = SQLiteDatabase.openDatabase(getDatabaseFile().getPath(), null,
+					SQLiteDatabase.OPEN_READONLY);
+		} else {
+			helper = new DatabaseHandler(databaseName, ctx, null);
+			database = helper.getWritableDatabase();
+		}
+		
+		Log.d(LOG_TAG, "Opened database " + databaseName + " in " + (TimeHelper.nowMs() - openStart) + " ms");
+		
+		if (readOnly == false && migrationEngine.hasMigrations())
+			migrationEngine.resume();
+		return database;
+	}
+	
+	ReentrantLock getWriteLock() {
+		return writeLock;
+	}
+	
+	long getWriteGeneration() {
+		return writeGeneration;
+	}
+	
+	Context getContext() {
+		return ctx;
+	}
+	
+	String getDatabaseName() {
+		return databaseName;
+	}
+	
+	/**
+	 * Executes single UPDATE or DELETE statement in its own
+	 * transaction and returns number of affected rows. Arguments
+	 * are bound by type, byte arrays as blobs
+	 */
+	int executeUpdateDelete(String sql, Object... args)
+	{
+		SQLiteDatabase database = getDatabase();
+		
+		writeLock.lock();
+		try
+		{
+			database.beginTransactionNonExclusive();
+			SQLiteStatement statement = database.compileStatement(sql);
+			try {
+				for (int i = 0 ; i < args.length ; i++)
+					bind(statement, i + 1, args[i]);
+				
+				int affected = statement.executeUpdateDelete();
+				database.setTransactionSuccessful();
+				return affected;
+			} finally {
+				statement.close();
+			}
+		}
+		finally {
+			try {
+				database.endTransaction();
+			} finally {
+				writeGeneration++;
+				writeLock.unlock();
+				notifySubscriptions(Collections.singletonList(sql));
+			}
+		}
+	}
+	
+	/**
+	 * Executes maintenance statements returning rows, such as
+	 * PRAGMA incremental_vacuum, under write lock. They change
+	 * database file, so write generation is incremented
+	 */
+	void executeMaintenance(List<String> statements)
+	{
+		SQLiteDatabase database = getDatabase();
+		
+		writeLock.lock();
+		try {
+			for (String statement : statements) {
+				Cursor cursor = database.rawQuery(statement, null);
+				try {
+					// pragma does its work while being stepped through
+					cursor.getCount();
+				} finally {
+					cursor.close();
+				}
+			}
+		} finally {
+			writeGeneration++;
+			writeLock.unlock();
+		}
+	}
+	
+	private void bind(SQLiteStatement statement, int index, Object value)
+	{
+		if (value == null)
+			statement.bindNull(index);
+		else if (value instanceof byte[])
+			statement.bindBlob(index, (byte[]) value);
+		else if (value instanceof Double || value instanceof Float)
+			statement.bindDouble(index, ((Number) value).doubleValue());
+		else if (value instanceof Number)
+			statement.bindLong(index, ((Number) value).longValue());
+		else
+			statement.bindString(index, value.toString());
+	}
+	
+	@Override
+	public synchronized BlobStore getBlobStore()
+	{
+		if (blobStore == null)
+			blobStore = new BlobStore(this, new File(getDatabaseFile().getPath() + "-blobs"));
+		return blobStore;
+	}
+	
+	@Override
+	public synchronized StorageAnalyzer getStorageAnalyzer()
+	{
+		if (storageAnalyzer == null)
+			storageAnalyzer = new StorageAnalyzer(this);
+		return storageAnalyzer;
+	}
+	
+	@Override
+	public MigrationEngine getMigrationEngine() {
+		return migrationEngine;
+	}
+	
+	@Override
+	public synchronized RetentionManager getRetentionManager()
+	{
+		if (retentionManager == null)
+			retentionManager = new RetentionManager(this);
+		return retentionManager;
+	}
+	
+	@Override
+	public FullTextIndex createFullTextIndex(String table, List<String> columns)
+	{
+		FullTextIndex index = new FullTextIndex(this, table, columns);
+		index.create();
+		return index;
+	}
+	
+	@Override
+	public SummaryTable createSummaryTable(String name, String aggregateQuery)
+	{
+		SummaryTable summaryTable = SummaryTable.fromQuery(this, name, aggregateQuery);
+		summaryTable.create();
+		return summaryTable;
+	}
+	
+	@Override
+	public DatabaseSnapshot createSnapshot(File target) {
+		return new DatabaseSnapshot(this, target);
+	}
+	
+	/**
+	 * Resolves database file, database name may be
+	 * either a plain name or an absolute path
+	 */
+	protected File getDatabaseFile()
+	{
+		File file = new File(databaseName);
+		return file.isAbsolute() ? file : ctx.getDatabasePath(databaseName);
+	}
+	
+	@Override
+	public synchronized void close()
+	{
+		closed = true;
+		
+		for (QuerySubscription subscription : subscriptions)
+			subscription.cancel();
+		
+		if (retentionManager != null)
+			retentionManager.stop();
+		migrationEngine.stop();
+		
+		// recorder is owned by caller, only pending records are written out
+		QueryRecorder recorder = this.recorder;
+		if (recorder != null)
+			recorder.flush();
+		
+		if (database != null)
+			database.close();
+		if (helper != null)
+			helper.close();
+		
+		database = null;
+		helper = null;
+	}
+	
+	@Override
+	public void preload(Collection<String> names)
+	{
+		SQLiteDatabase database = getDatabase();
+		
+		for (String name : names)
+		{
+			Cursor cursor = null;
+			try {
+				cursor = database.rawQuery("SELECT type, tbl_name FROM sqlite_master WHERE name = ?",
+						new String[] { name });
+				if (cursor.moveToFirst() == false) {
+					Log.w(LOG_TAG, "Nothing to preload, " + name + " not found in database " + databaseName);
+					continue;
+				}
+				
+				String preloadQuery = "table".equals(cursor.getString(0)) ?
+						getTablePreloadQuery(name) : getIndexPreloadQuery(database, cursor.getString(1), name);
+				closeQuite(cursor);
+				
+				cursor = database.rawQuery(preloadQuery, null);
+				cursor.moveToFirst();
+			} catch (Exception e) {
+				Log.w(LOG_TAG, "Error preloading " + name + " in database " + databaseName);
+			} finally {
+				closeQuite(cursor);
+			}
+		}
+	}
+	
+	/**
+	 * Full scan of table b-tree, NOT INDEXED prevents
+	 * SQLite from choosing a smaller covering index instead
+	 */
+	private String getTablePreloadQuery(String table) {
+		return String.format("SELECT count(rowid) FROM \"%s\" NOT INDEXED", table);
+	}
+	
+	/**
+	 * Full scan of index b-tree, ordering by leading column makes
+	 * the index usable for INDEXED BY and keeps scan covering
+	 */
+	private String getIndexPreloadQuery(SQLiteDatabase database, String table, String index)
+	{
+		Cursor indexInfo = null;
+		try {
+			indexInfo = database.rawQuery(String.format("PRAGMA index_info(\"%s\")", index), null);
+			indexInfo.moveToFirst();
+			
+			String column = indexInfo.getString(indexInfo.getColumnIndex("name"));
+			return String.format("SELECT count(*) FROM (SELECT \"%2$s\" FROM \"%1$s\" INDEXED BY \"%3$s\" ORDER BY \"%2$s\")",
+					table, column, index);
+		} finally {
+			closeQuite(indexInfo);
+		}
 	}
 	
 	/**
@@ -82,7 +459,7 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 		
 		// counting table rows
 		try {
-			rowCountCursor = database.rawQuery(
+			rowCountCursor = getDatabase().rawQuery(
 					String.format("SELECT count(*) FROM %s", tableName), null);
 						
 			rowCountCursor.moveToFirst();
@@ -98,16 +475,197 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 	@Override
 	public QueryResult execute(Query query)
 	{
-		QueryType queryType = getQueryType(query);
-		switch (queryType)
+		long queryStart = TimeHelper.nowMs();
+		QueryResult result;
+		
+		if (closed)
+			return handleClosedDatabase(query);
+		
+		QueryScheduler scheduler = scheduling ? this.scheduler : null;
+		if (scheduler != null && scheduler.acquire(query) == false)
+			return handleCancellationInQueue(query);
+		
+		try
 		{
-			case QUERY_EXTRACTION: 
+			QueryType queryType = getQueryType(query);
+			switch (queryType)
+			{
+				case QUERY_EXTRACTION: 
+					result = coalescing ? executeCoalesced(query) : executeSelectQuery(query);
+					break;
+				case QUERY_OTHER:
+					result = executeNonSelectQuery(query);
+					break;
+				default:
+					result = handleUnrecognizedQuery(query);
+			}
+		}
+		finally {
+			if (scheduler != null)
+				scheduler.release(query);
+		}
+		
+		record(query.getSql(), query.getArgs(), queryStart, result);
+		return result;
+	}
+	
+	@Override
+	public QuerySubscription subscribe(Query query, String keyColumn, QuerySubscription.Listener listener)
+	{
+		if (getQueryType(query) != QueryType.QUERY_EXTRACTION)
+			throw new IllegalArgumentException("Only extraction queries can be subscribed to");
+		if (closed)
+			throw new IllegalStateException("Database " + databaseName + " is closed");
+		
+		QuerySubscription subscription = new QuerySubscription(this, query, keyColumn, listener);
+		subscriptions.add(subscription);
+		subscription.start();
+		return subscription;
+	}
+	
+	void unsubscribe(QuerySubscription subscription) {
+		subscriptions.remove(subscription);
+	}
+	
+	/**
+	 * Lets subscriptions depending on written tables re-execute
+	 */
+	private void notifySubscriptions(List<String> statements)
+	{
+		if (subscriptions.isEmpty())
+			return;
+		
+		Set<String> tables = QueryHelper.getWrittenTables(statements);
+		for (QuerySubscription subscription : subscriptions)
+			subscription.onTablesChanged(tables);
+	}
+	
+	@Override
+	public void setQueryScheduling(boolean scheduling) {
+		this.scheduling = scheduling;
+	}
+	
+	@Override
+	public QueryScheduler getQueryScheduler() {
+		return scheduler;
+	}
+	
+	private QueryResult executeCoalesced(Query query)
+	{
+		return coalescer.execute(query, getEffectiveLimits(query), writeGeneration, new QueryCoalescer.Executor()
+		{
+			@Override
+			public QueryResult execute(Query query) {
 				return executeSelectQuery(query);
-			case QUERY_OTHER:
-				return executeNonSelectQuery(query);
-			default:
-				return handleUnrecognizedQuery(query);
+			}
+		});
+	}
+	
+	@Override
+	public void setQueryCoalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+	}
+	
+	@Override
+	public QueryCoalescer getQueryCoalescer() {
+		return coalescer;
+	}
+	
+	@Override
+	public void setQueryRecorder(QueryRecorder recorder) {
+		this.recorder = recorder;
+	}
+	
+	private void record(String sql, String[] args, long queryStart, QueryResult result)
+	{
+		QueryRecorder recorder = this.recorder;
+		if (recorder != null)
+			recorder.record(databaseName, sql, args, queryStart, result);
+	}
+	
+	@Override
+	public <T> MappedQueryResult<T> execute(Query query, Class<T> type) {
+		return execute(query, RowMappers.forClass(type));
+	}
+	
+	@Override
+	public <T> MappedQueryResult<T> execute(Query query, RowMapperFactory<T> mapperFactory)
+	{
+		MappedQueryResult<T> result = new MappedQueryResult<T>();
+		result.setTimestamp(TimeHelper.now());
+		result.setDb(databaseName);
+		result.setData(Collections.<Map<String, String>>emptyList());
+		
+		if (getQueryType(query) != QueryType.QUERY_EXTRACTION) {
+			result.setStatus(SQL_INVALID);
+			result.setDuration(-1);
+			result.setError("Only extraction queries can be mapped");
+			return result;
+		}
+		
+		QueryScheduler scheduler = scheduling ? this.scheduler : null;
+		if (scheduler != null && scheduler.acquire(query) == false) {
+			result.setRows(Collections.<T>emptyList());
+			result.setStatus(SQL_CANCELLED);
+			result.setError("Query cancelled");
+			return result;
+		}
+		
+		QueryLimits limits = getEffectiveLimits(query);
+		CancellationSignal signal = query.attachCancellationSignal();
+		ScheduledFuture<?> timeout = scheduleTimeout(signal, limits);
+		
+		long queryStart = TimeHelper.nowMs();
+		Cursor cursor = null;
+		try
+		{
+			cursor = getDatabase().rawQuery(limitRows(query.getSql(), limits.getMaxRows()), query.getArgs(), signal);
+			result.setDuration(TimeHelper.nowMs() - queryStart);
+			result.setStatus(SQL_SUCCESS);
+			
+			if (cursor.moveToFirst())
+			{
+				List<T> rows = new ArrayList<T>(cursor.getCount());
+				RowMapper<T> mapper = mapperFactory.bind(getColumnNames(cursor));
+				
+				// byte limit isn't applied, mapped rows aren't materialized as strings
+				do {
+					if (limits.getMaxRows() > 0 && rows.size() >= limits.getMaxRows()) {
+						result.setStatus(SQL_TRUNCATED);
+						result.setError("Row limit of " + limits.getMaxRows() + " reached");
+						break;
+					}
+					
+					rows.add(mapper.mapRow(cursor));
+					signal.throwIfCanceled();
+				} while (cursor.moveToNext());
+				
+				result.setRows(rows);
+			}
+		}
+		catch (OperationCanceledException e)
+		{
+			result.setRows(Collections.<T>emptyList());
+			handleCancellation(query, limits, result);
+		}
+		catch (Exception e)
+		{
+			result.setRows(Collections.<T>emptyList());
+			result.setStatus(SQL_ERROR);
+			result.setError(e.getMessage());
+			result.setDuration(0);
+		}
+		finally
+		{
+			closeQuite(cursor);
+			finishExecution(query, signal, timeout);
+			if (scheduler != null)
+				scheduler.release(query);
 		}
+		
+		result.setSize(result.getRows().size());
+		record(query.getSql(), query.getArgs(), queryStart, result);
+		return result;
 	}
 	
 	public int getTableCount()
@@ -116,7 +674,7 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 		
 		// counting tables
 		try {
-			tableCountCursor = database.rawQuery(String.format("SELECT count(*) FROM sqlite_master " +
+			tableCountCursor = getDatabase().rawQuery(String.format("SELECT count(*) FROM sqlite_master " +
 							"WHERE type = 'table' AND name != 'android_metadata' AND name != 'sqlite_sequence'"), null);
 			
 			tableCountCursor.moveToFirst();
@@ -139,7 +697,7 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 
 		Cursor tablesIterator = null;
 		try {
-			tablesIterator = database.rawQuery(tablesQuery, null);
+			tablesIterator = getDatabase().rawQuery(tablesQuery, null);
 			if (tablesIterator.moveToFirst())
 			{
 				result = new HashSet<String>();
@@ -166,7 +724,48 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 	}
 
 	
+	@Override
+	public QueryResult executeInTransaction(List<String> statements)
+	{
+		for (String statement : statements)
+			if (getQueryType(new Query(statement)) != QueryType.QUERY_OTHER)
+				return handleUnrecognizedQuery(new Query(statement));
+		
+		long queryStart = TimeHelper.nowMs();
+		QueryResult result = executeStatements(new Query(), statements);
+		
+		// recorded the same way multiple queries are passed to execute
+		if (recorder != null) {
+			StringBuilder sql = new StringBuilder();
+			for (String statement : statements) {
+				if (sql.length() > 0)
+					sql.append("/*@*/");
+				sql.append(statement);
+			}
+			record(sql.toString(), null, queryStart, result);
+		}
+		
+		return result;
+	}
+	
 	protected QueryResult executeNonSelectQuery(Query query)
+	{
+		String[] statements = getQueries(query.getSql());
+		
+		// it's unclear which statement arguments belong to
+		if (query.getArgs() != null && statements.length > 1) {
+			QueryResult result = handleUnrecognizedQuery(query);
+			result.setError("Bind arguments require a single statement");
+			return result;
+		}
+		
+		return executeStatements(query, Arrays.asList(statements));
+	}
+	
+	/**
+	 * Executes statements in one transaction
+	 */
+	protected QueryResult executeStatements(Query query, List<String> statements)
 	{
 		QueryResult result = new QueryResult();
 		result.setTimestamp(TimeHelper.now());
@@ -175,34 +774,175 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 		
 		long queryStart = TimeHelper.nowMs();
 		
+		SQLiteDatabase database;
+		try {
+			database = getDatabase();
+		} catch (Exception e) {
+			result.setStatus(SQL_ERROR);
+			result.setError(e.getMessage());
+			result.setDuration(TimeHelper.nowMs() - queryStart);
+			return result;
+		}
+		
+		QueryLimits limits = getEffectiveLimits(query);
+		CancellationSignal signal = query.attachCancellationSignal();
+		ScheduledFuture<?> timeout = scheduleTimeout(signal, limits);
+		
+		// number of statements committed before yielding to other queries
+		int committed = 0;
+		QueryScheduler scheduler = scheduling ? this.scheduler : null;
+		
+		writeLock.lock();
 		try
 		{
 			database.beginTransactionNonExclusive();
 			
-			for (String q : getQueries(query.getSql())) {
-				database.execSQL(q);
+			// execSQL can't be interrupted, so cancellation
+			// is checked between statements
+			for (int i = 0 ; i < statements.size() ; i++) {
+				signal.throwIfCanceled();
+				if (i > 0 && shouldYield(query, scheduler)) {
+					yieldTransaction(database, query, scheduler);
+					committed = i;
+				}
+				if (query.getArgs() != null)
+					database.execSQL(statements.get(i), query.getArgs());
+				else
+					database.execSQL(statements.get(i));
 			}
 			
 			database.setTransactionSuccessful();
 			result.setStatus(SQL_SUCCESS);
 		}
+		catch (OperationCanceledException e)
+		{
+			handleCancellation(query, limits, result);
+			handlePartialCommit(result, committed, statements.size());
+		}
 		catch (Exception e)
 		{
 			result.setStatus(SQL_ERROR);
 			result.setError(e.getMessage());
+			handlePartialCommit(result, committed, statements.size());
 		}
 		finally {
 			result.setDuration(TimeHelper.nowMs() - queryStart);
-			database.endTransaction();
+			try {
+				database.endTransaction();
+			} finally {
+				writeGeneration++;
+				writeLock.unlock();
+				finishExecution(query, signal, timeout);
+				notifySubscriptions(statements);
+			}
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Marks failed result of a query whose first statements
+	 * have been committed before it failed
+	 */
+	private void handlePartialCommit(QueryResult result, int committed, int statements)
+	{
+		if (committed == 0)
+			return;
+		
+		result.setStatus(SQL_PARTIAL);
+		result.setError(result.getError() + " (first " + committed + " of " + statements + " statements committed)");
+	}
+	
+	/**
+	 * Splittable background query yields to waiting writers and to
+	 * queries of higher priority, reads among them wait for database
+	 * connection rather than for write lock
+	 */
+	private boolean shouldYield(Query query, QueryScheduler scheduler)
+	{
+		if (query.isSplittable() == false || query.getPriority() != QueryPriority.BACKGROUND)
+			return false;
+		return writeLock.hasQueuedThreads()
+				|| scheduler != null && scheduler.hasPrecedingQueries(query.getPriority());
+	}
+	
+	/**
+	 * Commits statements executed so far and lets waiting writers
+	 * and queries of higher priority through before continuing
+	 * in a new transaction
+	 */
+	private void yieldTransaction(SQLiteDatabase database, Query query, QueryScheduler scheduler)
+	{
+		database.setTransactionSuccessful();
+		database.endTransaction();
+		writeGeneration++;
+		
+		writeLock.unlock();
+		try {
+			if (scheduler != null)
+				scheduler.awaitPrecedingQueries(query.getPriority(), MAX_YIELD_WAIT);
+			else
+				Thread.yield();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			writeLock.lock();
+		}
+		database.beginTransactionNonExclusive();
+	}
+	
 	protected String[] getQueries(String sql) {
 		return sql.split(SQL_QUERY_SEPARATOR);
 	}
 	
+	/**
+	 * Wraps SELECT in a query limited to one row over maximum, so
+	 * SQLite stops there. Cursor otherwise steps through the whole
+	 * result on first move to count its rows. PRAGMA isn't limited
+	 */
+	private static String limitRows(String sql, int maxRows) {
+		return maxRows > 0 ? limitRows(sql, (long) maxRows + 1, 0) : sql;
+	}
+	
+	/**
+	 * Wraps SELECT in a query returning given number of rows
+	 * from offset, negative count means no limit
+	 */
+	private static String limitRows(String sql, long count, long offset)
+	{
+		String body = sql.trim();
+		if (isSelect(body) == false)
+			return sql;
+		
+		while (body.endsWith(";"))
+			body = body.substring(0, body.length() - 1).trim();
+		
+		// line break ends trailing comment of wrapped query
+		return "SELECT * FROM (" + body + "\n) LIMIT " + count + (offset > 0 ? " OFFSET " + offset : "");
+	}
+	
+	private static boolean isSelect(String sql) {
+		return sql.trim().toLowerCase(Locale.ENGLISH).startsWith("select");
+	}
+	
+	/**
+	 * Returns column names of cursor, SQLite suffixes duplicate names
+	 * of wrapped query like "id:1", they are restored to original
+	 */
+	private static String[] getColumnNames(Cursor cursor)
+	{
+		String[] columns = cursor.getColumnNames();
+		Set<String> seen = new HashSet<String>();
+		for (int i = 0 ; i < columns.length ; i++) {
+			int suffix = columns[i].lastIndexOf(':');
+			if (suffix > 0 && columns[i].substring(suffix + 1).matches("\\d+")
+					&& seen.contains(columns[i].substring(0, suffix)))
+				columns[i] = columns[i].substring(0, suffix);
+			seen.add(columns[i]);
+		}
+		return columns;
+	}
+	
 	protected QueryResult executeSelectQuery(Query query)
 	{
 		QueryResult result = new QueryResult();
@@ -210,36 +950,108 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 		
 		result.setTimestamp(TimeHelper.now());
 		result.setDb(databaseName);
+		
+		QueryLimits limits = getEffectiveLimits(query);
+		CancellationSignal signal = query.attachCancellationSignal();
+		ScheduledFuture<?> timeout = scheduleTimeout(signal, limits);
 			
 		Cursor cursor = null;
 		try
 		{
-			long queryStart = TimeHelper.nowMs();
-			cursor = database.rawQuery(query.getSql(), null);
-			result.setDuration(TimeHelper.nowMs() - queryStart);
+			resultList = new ArrayList<Map<String,String>>();
+			long resultBytes = 0;
 			
-			if (cursor.moveToFirst())
-			{
-				resultList = new ArrayList<Map<String,String>>();
-				do {
-					Map<String, String> rowData = new LinkedHashMap<String, String>();
-					for (int i = 0 ; i < cursor.getColumnCount() ; i++) {
-						rowData.put(cursor.getColumnName(i), cursor.getString(i));
-					}
-					resultList.add(rowData);
-				} while (cursor.moveToNext());
-			} 
+			// cursor steps through the whole result on first move,
+			// byte limit is only bounded by reading in chunks
+			boolean chunked = limits.getMaxBytes() > 0 && isSelect(query.getSql());
+			long chunk = FIRST_CHUNK_ROWS;
+			long offset = 0;
+			long generation = writeGeneration;
+			int restarts = 0;
 			
+			long queryStart = TimeHelper.nowMs();
 			result.setStatus(SQL_SUCCESS);
+			while (true)
+			{
+				long count = -1;
+				String sql = limitRows(query.getSql(), limits.getMaxRows());
+				if (chunked) {
+					count = limits.getMaxRows() > 0 ? Math.min(chunk, limits.getMaxRows() + 1 - offset) : chunk;
+					sql = limitRows(query.getSql(), count, offset);
+				}
+				
+				cursor = getDatabase().rawQuery(sql, query.getArgs(), signal);
+				boolean stopped = false;
+				int read = 0;
+				if (cursor.moveToFirst())
+				{
+					String[] columns = getColumnNames(cursor);
+					do {
+						if (limits.getMaxRows() > 0 && resultList.size() >= limits.getMaxRows()) {
+							result.setStatus(SQL_TRUNCATED);
+							result.setError("Row limit of " + limits.getMaxRows() + " reached");
+							stopped = true;
+							break;
+						}
+						
+						long rowBytes = 0;
+						Map<String, String> rowData = new LinkedHashMap<String, String>();
+						for (int i = 0 ; i < columns.length ; i++) {
+							String value = cursor.getString(i);
+							if (value != null)
+								rowBytes += 2 * value.length();
+							rowData.put(columns[i], value);
+						}
+						
+						if (limits.getMaxBytes() > 0 && resultBytes + rowBytes > limits.getMaxBytes()) {
+							result.setStatus(SQL_TRUNCATED);
+							result.setError("Byte limit of " + limits.getMaxBytes() + " reached");
+							stopped = true;
+							break;
+						}
+						
+						resultBytes += rowBytes;
+						resultList.add(rowData);
+						read++;
+						signal.throwIfCanceled();
+					} while (cursor.moveToNext());
+				}
+				closeQuite(cursor);
+				cursor = null;
+				
+				if (chunked == false || stopped || read < count)
+					break;
+				
+				offset += read;
+				chunk = Math.min(chunk * 2, Integer.MAX_VALUE);
+				if (writeGeneration != generation)
+				{
+					// rows may have moved between chunks, starting over
+					if (++restarts > MAX_CHUNK_RESTARTS)
+						chunked = false;
+					resultList.clear();
+					resultBytes = 0;
+					offset = 0;
+					generation = writeGeneration;
+				}
+			}
+			result.setDuration(TimeHelper.nowMs() - queryStart);
+		}
+		catch (OperationCanceledException e)
+		{
+			resultList = Collections.emptyList();
+			handleCancellation(query, limits, result);
 		}
 		catch (Exception e)
 		{
+			resultList = Collections.emptyList();
 			result.setStatus(SQL_ERROR);
 			result.setError(e.getMessage());
 			result.setDuration(0);
 		} finally
 		{
 			closeQuite(cursor);
+			finishExecution(query, signal, timeout);
 		}
 		
 		result.setData(resultList);
@@ -248,6 +1060,66 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 		return result;
 	}
 	
+	/**
+	 * Returns query limits with unset ones taken from provider defaults
+	 */
+	protected QueryLimits getEffectiveLimits(Query query) {
+		return query.getLimits() != null ? query.getLimits().withDefaults(defaultLimits) : defaultLimits;
+	}
+	
+	private ScheduledFuture<?> scheduleTimeout(final CancellationSignal signal, QueryLimits limits)
+	{
+		if (limits.getTimeout() <= 0)
+			return null;
+		
+		return timeoutScheduler.schedule(new Runnable()
+		{
+			@Override
+			public void run() {
+				signal.cancel();
+			}
+		}, limits.getTimeout(), TimeUnit.MILLISECONDS);
+	}
+	
+	private void finishExecution(Query query, CancellationSignal signal, ScheduledFuture<?> timeout)
+	{
+		if (timeout != null)
+			timeout.cancel(false);
+		query.detachCancellationSignal(signal);
+	}
+	
+	private void handleCancellation(Query query, QueryLimits limits, QueryResult result)
+	{
+		result.setStatus(SQL_CANCELLED);
+		result.setError(query.isCancelled() ? "Query cancelled" :
+			"Query timed out after " + limits.getTimeout() + " ms");
+	}
+	
+	/**
+	 * Result of query cancelled while waiting to be admitted
+	 */
+	private QueryResult handleCancellationInQueue(Query query)
+	{
+		QueryResult result = new QueryResult();
+		result.setDb(databaseName);
+		result.setData(Collections.<Map<String, String>>emptyList());
+		result.setStatus(SQL_CANCELLED);
+		result.setTimestamp(TimeHelper.now());
+		result.setError("Query cancelled");
+		return result;
+	}
+	
+	private QueryResult handleClosedDatabase(Query query)
+	{
+		QueryResult result = new QueryResult();
+		result.setDb(databaseName);
+		result.setData(Collections.<Map<String, String>>emptyList());
+		result.setStatus(SQL_ERROR);
+		result.setTimestamp(TimeHelper.now());
+		result.setError("Database " + databaseName + " is closed");
+		return result;
+	}
+	
 	protected QueryResult handleUnrecognizedQuery(Query query)
 	{
 	    QueryResult result = new QueryResult();
@@ -263,21 +1135,37 @@ public class SqliteDatasourceProviderImpl implements DatasourceProvider
 	
 	private class DatabaseHandler extends SQLiteOpenHelper
 	{
-		private static final int DATABASE_VERSION = 1;
-		
 		public DatabaseHandler(String databaseName, Context context, CursorFactory factory) {
-			super(context, databaseName, factory, DATABASE_VERSION);
+			super(context, databaseName, factory, migrationEngine.getVersion());
 		}
 
 		/**
-		 * Queries are coming from the outside. Database structure is not knows beforehand
+		 * Queries are coming from the outside. Database structure is not knows beforehand,
+		 * unless migrations are registered, new database is then built by all of them
 		 */
 		@Override
-		public void onCreate(SQLiteDatabase db) {
+		public void onCreate(SQLiteDatabase db)
+		{
+			if (migrationEngine.hasMigrations())
+				migrationEngine.prepare(db, 0, migrationEngine.getVersion(), true);
 		}
 
+		/**
+		 * Only quick statements run here, table rebuilds are
+		 * recorded and done in background after database is open
+		 */
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			migrationEngine.prepare(db, oldVersion, newVersion, false);
+		}
+		
+		/**
+		 * Database opened without migrations registered, schema is left
+		 * as is, applied migrations are recorded and won't run again
+		 */
+		@Override
+		public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			Log.w(LOG_TAG, "Database " + databaseName + " opened with version " + newVersion + " lower than " + oldVersion);
 		}
 	}
 }
@@ -0,0 +1,383 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import static com.plexteq.easysqlite.db.DatabaseHelper.quoteIdentifier;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+/**
+ * Reports where database bytes go. Usage of tables and indexes is read
+ * from dbstat virtual table if SQLite has been built with it, otherwise
+ * it's estimated: row counts are taken from sqlite_stat1 if ANALYZE has
+ * been run, otherwise counted and reused between analyses for a while,
+ * row sizes are measured on a few windows of sampled rows
+ */
+public class StorageAnalyzer
+{
+	/**
+	 * Bytes of b-tree page header and cell pointer,
+	 * added to sampled record size when estimating
+	 */
+	private static final int PAGE_HEADER_BYTES = 12;
+	private static final int CELL_OVERHEAD_BYTES = 6;
+	
+	/**
+	 * Sampled rows are read in this many windows at random rowids
+	 */
+	private static final int SAMPLE_WINDOWS = 8;
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final SqliteDatasourceProviderImpl provider;
+	private final Random random = new Random();
+	
+	private int sampleSize = 200;
+	private volatile boolean dbstatAvailable = true;
+	
+	/**
+	 * Row counts of tables missing from sqlite_stat1, reused until
+	 * too old unless there were no writes since they were taken
+	 */
+	private final Map<String, RowCount> rowCounts = new ConcurrentHashMap<String, RowCount>();
+	private volatile long rowCountMaxAge = 5 * 60 * 1000;
+	
+	private static class RowCount
+	{
+		private final long rows;
+		private final long timestamp;
+		private final long generation;
+		
+		RowCount(long rows, long timestamp, long generation) {
+			this.rows = rows;
+			this.timestamp = timestamp;
+			this.generation = generation;
+		}
+	}
+	
+	StorageAnalyzer(SqliteDatasourceProviderImpl provider) {
+		this.provider = provider;
+	}
+	
+	public StorageReport analyze()
+	{
+		long analyzeStart = TimeHelper.nowMs();
+		SQLiteDatabase database = provider.getDatabase();
+		
+		StorageReport report = new StorageReport();
+		report.setTimestamp(TimeHelper.now());
+		report.setPageSize(queryLong(database, "PRAGMA page_size"));
+		report.setPageCount(queryLong(database, "PRAGMA page_count"));
+		report.setFreelistCount(queryLong(database, "PRAGMA freelist_count"));
+		
+		File file = new File(database.getPath());
+		report.setFileSize(file.length());
+		report.setWalSize(new File(file.getPath() + "-wal").length());
+		
+		Map<String, StorageUsage> objects = getObjects(database);
+		if (dbstatAvailable) {
+			try {
+				readDbstat(database, objects, report.getPageSize());
+				report.setExact(true);
+			} catch (SQLiteException e) {
+				Log.d(LOG_TAG, "dbstat isn't available, estimating storage usage");
+				dbstatAvailable = false;
+			}
+		}
+		if (report.isExact() == false)
+			estimate(database, objects, report.getPageSize());
+		
+		report.setObjects(new ArrayList<StorageUsage>(objects.values()));
+		report.setDuration(TimeHelper.nowMs() - analyzeStart);
+		return report;
+	}
+	
+	private Map<String, StorageUsage> getObjects(SQLiteDatabase database)
+	{
+		Map<String, StorageUsage> objects = new LinkedHashMap<String, StorageUsage>();
+		Cursor cursor = database.rawQuery("SELECT type, name, tbl_name FROM sqlite_master "
+				+ "WHERE type IN ('table', 'index') AND rootpage > 0 ORDER BY tbl_name, type DESC, name", null);
+		try {
+			while (cursor.moveToNext()) {
+				StorageUsage object = new StorageUsage();
+				object.setType(cursor.getString(0));
+				object.setName(cursor.getString(1));
+				object.setTable(cursor.getString(2));
+				objects.put(object.getName(), object);
+			}
+		} finally {
+			cursor.close();
+		}
+		return objects;
+	}
+	
+	/**
+	 * Reads usage of every page, pages of a b-tree come in
+	 * traversal order, so a jump in page number between
+	 * consecutive pages means fragmentation
+	 */
+	private void readDbstat(SQLiteDatabase database, Map<String, StorageUsage> objects, long pageSize)
+	{
+		Cursor cursor = database.rawQuery("SELECT name, pageno, pagetype, ncell, payload, unused FROM dbstat", null);
+		try
+		{
+			StorageUsage object = null;
+			long previousPage = 0, jumps = 0;
+			while (cursor.moveToNext())
+			{
+				String name = cursor.getString(0);
+				if (object == null || object.getName().equals(name) == false) {
+					finishFragmentation(object, jumps);
+					object = objects.get(name);
+					if (object == null) {
+						// sqlite_master itself
+						object = new StorageUsage();
+						object.setName(name);
+						object.setTable(name);
+						object.setType("table");
+						objects.put(name, object);
+					}
+					jumps = 0;
+					previousPage = 0;
+				}
+				
+				long page = cursor.getLong(1);
+				if (previousPage > 0 && page != previousPage + 1)
+					jumps++;
+				previousPage = page;
+				
+				object.setPages(object.getPages() + 1);
+				if ("leaf".equals(cursor.getString(2)))
+					object.setRows(object.getRows() + cursor.getLong(3));
+				object.setPayloadBytes(object.getPayloadBytes() + cursor.getLong(4));
+				object.setOverheadBytes(object.getOverheadBytes() + pageSize - cursor.getLong(4));
+			}
+			finishFragmentation(object, jumps);
+		}
+		finally {
+			cursor.close();
+		}
+	}
+	
+	private void finishFragmentation(StorageUsage object, long jumps)
+	{
+		if (object != null)
+			object.setFragmentation(object.getPages() > 1 ? (double) jumps / (object.getPages() - 1) : 0);
+	}
+	
+	private void estimate(SQLiteDatabase database, Map<String, StorageUsage> objects, long pageSize)
+	{
+		Map<String, Long> analyzedRows = getAnalyzedRows(database);
+		Map<String, Long> tableRows = new LinkedHashMap<String, Long>();
+		
+		for (StorageUsage object : objects.values())
+		{
+			try
+			{
+				// indexes have an entry per table row
+				Long rows = analyzedRows.get(object.getName());
+				if (rows == null)
+					rows = tableRows.get(object.getTable());
+				if (rows == null)
+					rows = countRows(database, object.getTable());
+				if ("table".equals(object.getType()))
+					tableRows.put(object.getName(), rows);
+				
+				double recordSize = getSampledRecordSize(database, object) + CELL_OVERHEAD_BYTES;
+				long payload = Math.round(rows * recordSize);
+				long pages = Math.max(1, (long) Math.ceil((double) payload / (pageSize - PAGE_HEADER_BYTES)));
+				
+				object.setRows(rows);
+				object.setPayloadBytes(payload);
+				object.setPages(pages);
+				object.setOverheadBytes(pages * pageSize - payload);
+				object.setEstimated(true);
+			}
+			catch (SQLiteException e)
+			{
+				Log.w(LOG_TAG, "Error estimating storage of " + object.getName() + ": " + e.getMessage());
+			}
+		}
+		
+		// dropped tables
+		rowCounts.keySet().retainAll(tableRows.keySet());
+	}
+	
+	private long countRows(SQLiteDatabase database, String table)
+	{
+		long generation = provider.getWriteGeneration(), now = TimeHelper.nowMs();
+		RowCount count = rowCounts.get(table);
+		if (count != null && (count.generation == generation || now - count.timestamp < rowCountMaxAge))
+			return count.rows;
+		
+		count = new RowCount(queryLong(database, "SELECT count(*) FROM " + quoteIdentifier(table)), now, generation);
+		rowCounts.put(table, count);
+		return count.rows;
+	}
+	
+	/**
+	 * Returns row counts gathered by ANALYZE, first
+	 * number of stat column is number of rows
+	 */
+	private Map<String, Long> getAnalyzedRows(SQLiteDatabase database)
+	{
+		Map<String, Long> rows = new LinkedHashMap<String, Long>();
+		Cursor cursor = null;
+		try {
+			cursor = database.rawQuery("SELECT tbl, idx, stat FROM sqlite_stat1", null);
+			while (cursor.moveToNext()) {
+				String stat = cursor.getString(2);
+				if (stat == null || stat.length() == 0)
+					continue;
+				
+				String name = cursor.isNull(1) ? cursor.getString(0) : cursor.getString(1);
+				rows.put(name, Long.parseLong(stat.split(" ")[0]));
+			}
+		} catch (SQLiteException e) {
+			// not analyzed
+		} catch (NumberFormatException e) {
+			Log.w(LOG_TAG, "Unexpected sqlite_stat1 content");
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		return rows;
+	}
+	
+	/**
+	 * Measures average record size of sampled rows, for indexes
+	 * only indexed columns and rowid are measured
+	 */
+	private double getSampledRecordSize(SQLiteDatabase database, StorageUsage object)
+	{
+		List<String> columns = getColumns(database, object);
+		if (columns.isEmpty())
+			return 0;
+		
+		StringBuilder size = new StringBuilder();
+		for (String column : columns) {
+			if (size.length() > 0)
+				size.append(" + ");
+			
+			// one header byte per column, integers take up to 8 bytes
+			size.append("1 + CASE typeof(").append(column).append(") WHEN 'integer' THEN 8 WHEN 'real' THEN 8 ")
+					.append("WHEN 'null' THEN 0 ELSE length(CAST(").append(column).append(" AS BLOB)) END");
+		}
+		
+		// rowid of a table row is stored in the cell, outside of record
+		size.append(" + 8");
+		
+		String table = quoteIdentifier(object.getTable());
+		long minRowid = queryLong(database, "SELECT ifnull(min(rowid), 0) FROM " + table);
+		long maxRowid = queryLong(database, "SELECT ifnull(max(rowid), 0) FROM " + table);
+		int windowSize = Math.max(1, sampleSize / SAMPLE_WINDOWS);
+		
+		long totalSize = 0, sampled = 0;
+		for (int i = 0 ; i < SAMPLE_WINDOWS ; i++)
+		{
+			long start = minRowid + (long) (random.nextDouble() * Math.max(0, maxRowid - minRowid));
+			Cursor cursor = database.rawQuery("SELECT " + size + " FROM " + table + " WHERE rowid >= " + start
+					+ " ORDER BY rowid LIMIT " + windowSize, null);
+			try {
+				while (cursor.moveToNext()) {
+					totalSize += cursor.getLong(0);
+					sampled++;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		
+		return sampled > 0 ? (double) totalSize / sampled : 0;
+	}
+	
+	private List<String> getColumns(SQLiteDatabase database, StorageUsage object)
+	{
+		List<String> columns = new ArrayList<String>();
+		boolean index = "index".equals(object.getType());
+		Cursor cursor = database.rawQuery((index ? "PRAGMA index_info(" : "PRAGMA table_info(")
+				+ quoteIdentifier(object.getName()) + ")", null);
+		try {
+			int name = cursor.getColumnIndex("name");
+			while (cursor.moveToNext())
+				columns.add(quoteIdentifier(cursor.getString(name)));
+		} finally {
+			cursor.close();
+		}
+		return columns;
+	}
+	
+	private long queryLong(SQLiteDatabase database, String sql)
+	{
+		Cursor cursor = database.rawQuery(sql, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	public int getSampleSize() {
+		return sampleSize;
+	}
+	
+	/**
+	 * Sets number of rows sampled per table or index when estimating
+	 */
+	public void setSampleSize(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+	
+	public long getRowCountMaxAge() {
+		return rowCountMaxAge;
+	}
+	
+	/**
+	 * Sets milliseconds counted rows of a table are reused for when
+	 * estimating, counting scans the whole table. Counts are reused
+	 * regardless of age while there were no writes through provider
+	 */
+	public void setRowCountMaxAge(long rowCountMaxAge) {
+		this.rowCountMaxAge = rowCountMaxAge;
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Storage usage of a database and its tables and indexes
+ */
+public class StorageReport
+{
+	private long timestamp;
+	private long duration;
+	
+	/**
+	 * True if object usage comes from dbstat, otherwise
+	 * it's estimated from sampled rows
+	 */
+	private boolean exact;
+	
+	private long pageSize;
+	private long pageCount;
+	private long freelistCount;
+	private long fileSize;
+	private long walSize;
+	
+	private List<StorageUsage> objects = new ArrayList<StorageUsage>();
+	
+	public long getFreeBytes() {
+		return freelistCount * pageSize;
+	}
+	
+	/**
+	 * Returns share of database pages on freelist,
+	 * reclaimable by VACUUM
+	 */
+	public double getFreeRatio() {
+		return pageCount > 0 ? (double) freelistCount / pageCount : 0;
+	}
+	
+	/**
+	 * Returns tables and indexes ordered by size, the largest first
+	 */
+	public List<StorageUsage> getLargestObjects()
+	{
+		List<StorageUsage> largest = new ArrayList<StorageUsage>(objects);
+		Collections.sort(largest, new Comparator<StorageUsage>()
+		{
+			@Override
+			public int compare(StorageUsage left, StorageUsage right) {
+				return Long.valueOf(right.getTotalBytes()).compareTo(left.getTotalBytes());
+			}
+		});
+		return largest;
+	}
+	
+	public StorageUsage getObject(String name)
+	{
+		for (StorageUsage object : objects)
+			if (object.getName().equalsIgnoreCase(name))
+				return object;
+		return null;
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+	public long getDuration() {
+		return duration;
+	}
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+	public boolean isExact() {
+		return exact;
+	}
+	public void setExact(boolean exact) {
+		this.exact = exact;
+	}
+	public long getPageSize() {
+		return pageSize;
+	}
+	public void setPageSize(long pageSize) {
+		this.pageSize = pageSize;
+	}
+	public long getPageCount() {
+		return pageCount;
+	}
+	public void setPageCount(long pageCount) {
+		this.pageCount = pageCount;
+	}
+	public long getFreelistCount() {
+		return freelistCount;
+	}
+	public void setFreelistCount(long freelistCount) {
+		this.freelistCount = freelistCount;
+	}
+	public long getFileSize() {
+		return fileSize;
+	}
+	public void setFileSize(long fileSize) {
+		this.fileSize = fileSize;
+	}
+	public long getWalSize() {
+		return walSize;
+	}
+	public void setWalSize(long walSize) {
+		this.walSize = walSize;
+	}
+	public List<StorageUsage> getObjects() {
+		return objects;
+	}
+	public void setObjects(List<StorageUsage> objects) {
+		this.objects = objects;
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+/**
+ * Storage used by a table or an index
+ */
+public class StorageUsage
+{
+	private String name;
+	
+	/**
+	 * Table the object belongs to, same as name for tables
+	 */
+	private String table;
+	
+	/**
+	 * table or index
+	 */
+	private String type;
+	
+	private long pages;
+	private long rows;
+	
+	/**
+	 * Bytes of stored records, cell headers included
+	 */
+	private long payloadBytes;
+	
+	/**
+	 * Bytes of allocated pages not holding payload
+	 */
+	private long overheadBytes;
+	
+	/**
+	 * Share of pages not following their predecessor in file,
+	 * -1 if not known
+	 */
+	private double fragmentation = -1;
+	
+	/**
+	 * True if values are estimated from a sample of rows
+	 */
+	private boolean estimated;
+	
+	public String getName() {
+		return name;
+	}
+	public void setName(String name) {
+		this.name = name;
+	}
+	public String getTable() {
+		return table;
+	}
+	public void setTable(String table) {
+		this.table = table;
+	}
+	public String getType() {
+		return type;
+	}
+	public void setType(String type) {
+		this.type = type;
+	}
+	public long getPages() {
+		return pages;
+	}
+	public void setPages(long pages) {
+		this.pages = pages;
+	}
+	public long getRows() {
+		return rows;
+	}
+	public void setRows(long rows) {
+		this.rows = rows;
+	}
+	public long getPayloadBytes() {
+		return payloadBytes;
+	}
+	public void setPayloadBytes(long payloadBytes) {
+		this.payloadBytes = payloadBytes;
+	}
+	public long getOverheadBytes() {
+		return overheadBytes;
+	}
+	public void setOverheadBytes(long overheadBytes) {
+		this.overheadBytes = overheadBytes;
+	}
+	public double getFragmentation() {
+		return fragmentation;
+	}
+	public void setFragmentation(double fragmentation) {
+		this.fragmentation = fragmentation;
+	}
+	public boolean isEstimated() {
+		return estimated;
+	}
+	public void setEstimated(boolean estimated) {
+		this.estimated = estimated;
+	}
+	
+	public long getTotalBytes() {
+		return payloadBytes + overheadBytes;
+	}
+	
+	public double getAverageRowSize() {
+		return rows > 0 ? (double) payloadBytes / rows : 0;
+	}
+	
+	@Override
+	public String toString() {
+		return type + " " + name + ": " + pages + " pages, " + rows + " rows, " + payloadBytes + " payload bytes, "
+				+ overheadBytes + " overhead bytes" + (estimated ? " (estimated)" : "");
+	}
+}
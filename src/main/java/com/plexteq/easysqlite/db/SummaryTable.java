@@ -0,0 +1,478 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import static com.plexteq.easysqlite.db.DatabaseHelper.quoteIdentifier;
+import static com.plexteq.easysqlite.db.DatabaseHelper.toSqlLiteral;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+/**
+ * Table holding result of an aggregate query over a source table,
+ * kept up to date by triggers applying every insert, update and
+ * delete on the source as delta to the affected group. Supports
+ * COUNT, SUM, MIN and MAX, MIN and MAX are recomputed for the group
+ * when row holding current extreme is removed, so index on group
+ * columns of source table keeps deletes cheap
+ */
+public class SummaryTable
+{
+	/**
+	 * Hidden column holding number of source rows of a group
+	 */
+	private static final String ROWS_COLUMN = "easysqlite_rows";
+	
+	/**
+	 * Prefix of hidden columns holding number of non null
+	 * values summed, SUM of no values is NULL
+	 */
+	private static final String VALUES_COLUMN_PREFIX = "easysqlite_values_";
+	
+	private static final Pattern QUERY_PATTERN = Pattern.compile(
+			"\\s*SELECT\\s+(.+?)\\s+FROM\\s+(\\S+)\\s+GROUP\\s+BY\\s+(.+?)\\s*;?\\s*",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	
+	private static final Pattern AGGREGATE_PATTERN = Pattern.compile(
+			"(COUNT|SUM|MIN|MAX)\\s*\\(\\s*(\\*|[\\w\"`\\[\\]]+)\\s*\\)(?:\\s+(?:AS\\s+)?(\\S+))?",
+			Pattern.CASE_INSENSITIVE);
+	
+	public enum Function {
+		COUNT, SUM, MIN, MAX
+	}
+	
+	/**
+	 * Aggregate of a source column, column is null for COUNT(*)
+	 */
+	public static class Aggregate
+	{
+		private final Function function;
+		private final String column;
+		private final String alias;
+		
+		public Aggregate(Function function, String column, String alias)
+		{
+			if (column == null && function != Function.COUNT)
+				throw new IllegalArgumentException(function + " requires column");
+			
+			this.function = function;
+			this.column = column;
+			this.alias = alias;
+		}
+		
+		public Function getFunction() {
+			return function;
+		}
+		public String getColumn() {
+			return column;
+		}
+		public String getAlias() {
+			return alias;
+		}
+	}
+	
+	private final String LOG_TAG = getClass().getName();
+	
+	private final SqliteDatasourceProviderImpl provider;
+	private final String name;
+	private final String source;
+	private final List<String> groupBy;
+	private final List<Aggregate> aggregates;
+	
+	/**
+	 * Group columns and aggregate aliases in order of declaring query
+	 */
+	private final List<String> columns;
+	
+	SummaryTable(SqliteDatasourceProviderImpl provider, String name, String source, List<String> groupBy,
+			List<Aggregate> aggregates, List<String> columns)
+	{
+		if (aggregates.isEmpty())
+			throw new IllegalArgumentException("At least one aggregate is required");
+		
+		this.provider = provider;
+		this.name = name;
+		this.source = source;
+		this.groupBy = Collections.unmodifiableList(new ArrayList<String>(groupBy));
+		this.aggregates = Collections.unmodifiableList(new ArrayList<Aggregate>(aggregates));
+		this.columns = Collections.unmodifiableList(new ArrayList<String>(columns));
+	}
+	
+	/**
+	 * Declares summary table from aggregate query of form
+	 * SELECT g1, g2, COUNT(*), SUM(c) AS total, ... FROM t GROUP BY g1, g2
+	 * Aggregates without alias are named like count or sum_c
+	 */
+	static SummaryTable fromQuery(SqliteDatasourceProviderImpl provider, String name, String sql)
+	{
+		Matcher query = QUERY_PATTERN.matcher(sql);
+		if (query.matches() == false)
+			throw new IllegalArgumentException("Unsupported aggregate query: " + sql);
+		
+		List<String> groupBy = new ArrayList<String>();
+		for (String column : query.group(3).split(","))
+			groupBy.add(unquote(column.trim()));
+		
+		List<String> selected = new ArrayList<String>();
+		List<Aggregate> aggregates = new ArrayList<Aggregate>();
+		List<String> columns = new ArrayList<String>();
+		for (String item : query.group(1).split(","))
+		{
+			Matcher aggregate = AGGREGATE_PATTERN.matcher(item.trim());
+			if (aggregate.matches() == false) {
+				selected.add(unquote(item.trim()));
+				columns.add(unquote(item.trim()));
+				continue;
+			}
+			
+			Function function = Function.valueOf(aggregate.group(1).toUpperCase(Locale.US));
+			String column = "*".equals(aggregate.group(2)) ? null : unquote(aggregate.group(2));
+			String alias = aggregate.group(3) != null ? unquote(aggregate.group(3)) :
+				function.name().toLowerCase(Locale.US) + (column != null ? "_" + column : "");
+			aggregates.add(new Aggregate(function, column, alias));
+			columns.add(alias);
+		}
+		
+		if (new HashSet<String>(selected).equals(new HashSet<String>(groupBy)) == false)
+			throw new IllegalArgumentException("Selected columns " + selected + " must match grouping " + groupBy);
+		
+		return new SummaryTable(provider, name, unquote(query.group(2)), groupBy, aggregates, columns);
+	}
+	
+	/**
+	 * Creates summary table, its triggers and fills it, all in one
+	 * transaction. Existing summary table is kept if its table, index
+	 * and triggers match this definition, otherwise it's recreated.
+	 * Existing table which isn't a summary table is an error
+	 */
+	void create()
+	{
+		Map<String, String> schema = getSchema();
+		Map<String, String> existing = new HashMap<String, String>();
+		for (Map<String, String> row : check(provider.execute(new Query("SELECT name, sql FROM sqlite_master WHERE name IN ("
+				+ toSqlList(schema.keySet()) + ")"))).getData())
+			existing.put(row.get("name"), row.get("sql"));
+		
+		if (existing.equals(schema))
+			return;
+		
+		List<String> statements = new ArrayList<String>();
+		String table = existing.get(name);
+		if (table != null) {
+			if (table.contains(quoteIdentifier(ROWS_COLUMN)) == false)
+				throw new IllegalStateException("Table " + name + " already exists and isn't a summary table");
+			
+			Log.i(LOG_TAG, "Definition of summary table " + name + " changed, recreating it");
+			statements.addAll(getDropStatements());
+		}
+		
+		statements.addAll(schema.values());
+		statements.add(getFillStatement());
+		check(provider.executeInTransaction(statements));
+	}
+	
+	/**
+	 * Statements creating table, index and triggers by object name,
+	 * SQLite keeps statement text, so they are compared as is
+	 */
+	private Map<String, String> getSchema()
+	{
+		StringBuilder columns = new StringBuilder();
+		for (String column : groupBy)
+			columns.append(quoteIdentifier(column)).append(", ");
+		columns.append(quoteIdentifier(ROWS_COLUMN)).append(" INTEGER NOT NULL");
+		for (Aggregate aggregate : aggregates) {
+			columns.append(", ").append(quoteIdentifier(aggregate.alias));
+			if (aggregate.function == Function.SUM)
+				columns.append(", ").append(quoteIdentifier(VALUES_COLUMN_PREFIX + aggregate.alias)).append(" INTEGER");
+		}
+		
+		String quotedSource = quoteIdentifier(source);
+		Map<String, String> schema = new LinkedHashMap<String, String>();
+		schema.put(name, "CREATE TABLE " + quoteIdentifier(name) + " (" + columns + ")");
+		schema.put(name + "_groups", "CREATE INDEX " + quoteIdentifier(name + "_groups") + " ON " + quoteIdentifier(name)
+				+ " (" + join("", groupBy) + ")");
+		schema.put(name + "_insert", "CREATE TRIGGER " + quoteIdentifier(name + "_insert") + " AFTER INSERT ON " + quotedSource
+				+ " BEGIN " + getAddStatements() + " END");
+		schema.put(name + "_update", "CREATE TRIGGER " + quoteIdentifier(name + "_update") + " AFTER UPDATE ON " + quotedSource
+				+ " BEGIN " + getRemoveStatements() + " " + getAddStatements() + " END");
+		schema.put(name + "_delete", "CREATE TRIGGER " + quoteIdentifier(name + "_delete") + " AFTER DELETE ON " + quotedSource
+				+ " BEGIN " + getRemoveStatements() + " END");
+		return schema;
+	}
+	
+	private List<String> getDropStatements()
+	{
+		return Arrays.asList(
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(name + "_insert"),
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(name + "_update"),
+				"DROP TRIGGER IF EXISTS " + quoteIdentifier(name + "_delete"),
+				"DROP TABLE IF EXISTS " + quoteIdentifier(name));
+	}
+	
+	/**
+	 * Recomputes summary table from source table in one transaction
+	 */
+	public QueryResult refresh() {
+		return provider.executeInTransaction(Arrays.asList("DELETE FROM " + quoteIdentifier(name), getFillStatement()));
+	}
+	
+	/**
+	 * Drops summary table and its triggers
+	 */
+	public QueryResult drop()
+	{
+		return provider.executeInTransaction(getDropStatements());
+	}
+	
+	/**
+	 * Reads aggregates of all groups, same columns as declaring query
+	 */
+	public QueryResult query() {
+		return provider.execute(new Query(getSelect(null)));
+	}
+	
+	/**
+	 * Reads aggregates of groups matching given condition
+	 * on group columns, e.g. "region = 'EU'"
+	 */
+	public QueryResult query(String where) {
+		return provider.execute(new Query(getSelect(where)));
+	}
+	
+	private String getSelect(String where) {
+		return "SELECT " + join("", columns) + " FROM " + quoteIdentifier(name) + (where != null ? " WHERE " + where : "");
+	}
+	
+	private String getFillStatement()
+	{
+		StringBuilder columns = new StringBuilder(), values = new StringBuilder();
+		for (String column : groupBy) {
+			columns.append(quoteIdentifier(column)).append(", ");
+			values.append(quoteIdentifier(column)).append(", ");
+		}
+		
+		columns.append(quoteIdentifier(ROWS_COLUMN));
+		values.append("count(*)");
+		for (Aggregate aggregate : aggregates)
+		{
+			columns.append(", ").append(quoteIdentifier(aggregate.alias));
+			values.append(", ").append(aggregate.function.name().toLowerCase(Locale.US)).append('(')
+					.append(aggregate.column != null ? quoteIdentifier(aggregate.column) : "*").append(')');
+			if (aggregate.function == Function.SUM) {
+				columns.append(", ").append(quoteIdentifier(VALUES_COLUMN_PREFIX + aggregate.alias));
+				values.append(", count(").append(quoteIdentifier(aggregate.column)).append(')');
+			}
+		}
+		
+		return "INSERT INTO " + quoteIdentifier(name) + " (" + columns + ") SELECT " + values + " FROM "
+				+ quoteIdentifier(source) + (groupBy.isEmpty() ? "" : " GROUP BY " + join("", groupBy));
+	}
+	
+	/**
+	 * Trigger statements adding new row to its group, group
+	 * is created first if missing
+	 */
+	private String getAddStatements()
+	{
+		StringBuilder columns = new StringBuilder(), values = new StringBuilder();
+		for (String column : groupBy) {
+			columns.append(quoteIdentifier(column)).append(", ");
+			values.append("new.").append(quoteIdentifier(column)).append(", ");
+		}
+		columns.append(quoteIdentifier(ROWS_COLUMN));
+		values.append('0');
+		for (Aggregate aggregate : aggregates)
+		{
+			columns.append(", ").append(quoteIdentifier(aggregate.alias));
+			values.append(aggregate.function == Function.COUNT ? ", 0" : ", NULL");
+			if (aggregate.function == Function.SUM) {
+				columns.append(", ").append(quoteIdentifier(VALUES_COLUMN_PREFIX + aggregate.alias));
+				values.append(", 0");
+			}
+		}
+		
+		StringBuilder updates = new StringBuilder(quoteIdentifier(ROWS_COLUMN) + " = " + quoteIdentifier(ROWS_COLUMN) + " + 1");
+		for (Aggregate aggregate : aggregates)
+		{
+			String alias = quoteIdentifier(aggregate.alias);
+			String value = aggregate.column != null ? "new." + quoteIdentifier(aggregate.column) : null;
+			updates.append(", ").append(alias).append(" = ");
+			switch (aggregate.function)
+			{
+				case COUNT:
+					updates.append(alias).append(value != null ? " + (" + value + " IS NOT NULL)" : " + 1");
+					break;
+				case SUM:
+					String counted = quoteIdentifier(VALUES_COLUMN_PREFIX + aggregate.alias);
+					updates.append("CASE WHEN ").append(value).append(" IS NULL THEN ").append(alias)
+							.append(" ELSE ifnull(").append(alias).append(", 0) + ").append(value).append(" END, ")
+							.append(counted).append(" = ").append(counted).append(" + (").append(value).append(" IS NOT NULL)");
+					break;
+				default:
+					updates.append("CASE WHEN ").append(value).append(" IS NULL THEN ").append(alias)
+							.append(" WHEN ").append(alias).append(" IS NULL OR ").append(value)
+							.append(aggregate.function == Function.MIN ? " < " : " > ").append(alias)
+							.append(" THEN ").append(value).append(" ELSE ").append(alias).append(" END");
+			}
+		}
+		
+		return "INSERT INTO " + quoteIdentifier(name) + " (" + columns + ") SELECT " + values
+				+ " WHERE NOT EXISTS (SELECT 1 FROM " + quoteIdentifier(name) + getGroupCondition(" WHERE ", "new.") + "); "
+				+ "UPDATE " + quoteIdentifier(name) + " SET " + updates + getGroupCondition(" WHERE ", "new.") + ";";
+	}
+	
+	/**
+	 * Trigger statements removing old row from its group, MIN and MAX
+	 * are recomputed from source when removed value was the extreme,
+	 * groups left without rows are deleted
+	 */
+	private String getRemoveStatements()
+	{
+		StringBuilder updates = new StringBuilder(quoteIdentifier(ROWS_COLUMN) + " = " + quoteIdentifier(ROWS_COLUMN) + " - 1");
+		for (Aggregate aggregate : aggregates)
+		{
+			String alias = quoteIdentifier(aggregate.alias);
+			String value = aggregate.column != null ? "old." + quoteIdentifier(aggregate.column) : null;
+			updates.append(", ").append(alias).append(" = ");
+			switch (aggregate.function)
+			{
+				case COUNT:
+					updates.append(alias).append(value != null ? " - (" + value + " IS NOT NULL)" : " - 1");
+					break;
+				case SUM:
+					String counted = quoteIdentifier(VALUES_COLUMN_PREFIX + aggregate.alias);
+					updates.append("CASE WHEN ").append(value).append(" IS NULL THEN ").append(alias)
+							.append(" WHEN ").append(counted).append(" = 1 THEN NULL ELSE ").append(alias)
+							.append(" - ").append(value).append(" END, ")
+							.append(counted).append(" = ").append(counted).append(" - (").append(value).append(" IS NOT NULL)");
+					break;
+				default:
+					updates.append("CASE WHEN ").append(value).append(" IS NULL OR ").append(value)
+							.append(aggregate.function == Function.MIN ? " > " : " < ").append(alias)
+							.append(" THEN ").append(alias).append(" ELSE (SELECT ")
+							.append(aggregate.function.name().toLowerCase(Locale.US)).append('(')
+							.append(quoteIdentifier(aggregate.column)).append(") FROM ").append(quoteIdentifier(source))
+							.append(getGroupCondition(" WHERE ", "old.")).append(") END");
+			}
+		}
+		
+		return "UPDATE " + quoteIdentifier(name) + " SET " + updates + getGroupCondition(" WHERE ", "old.") + "; "
+				+ "DELETE FROM " + quoteIdentifier(name) + " WHERE " + quoteIdentifier(ROWS_COLUMN) + " <= 0"
+				+ getGroupCondition(" AND ", "old.") + ";";
+	}
+	
+	/**
+	 * Matches group of given row. Keys are compared with = so the
+	 * index on group columns is used, IS would prevent that before
+	 * SQLite 3.8.11. NULL keys are matched separately, so rows with
+	 * NULL keys form a group like in GROUP BY
+	 */
+	private String getGroupCondition(String prefix, String row)
+	{
+		if (groupBy.isEmpty())
+			return "";
+		
+		StringBuilder condition = new StringBuilder(prefix);
+		for (int i = 0 ; i < groupBy.size() ; i++) {
+			if (i > 0)
+				condition.append(" AND ");
+			String column = quoteIdentifier(groupBy.get(i));
+			condition.append('(').append(column).append(" = ").append(row).append(column).append(" OR ")
+					.append(row).append(column).append(" IS NULL AND ").append(column).append(" IS NULL)");
+		}
+		return condition.toString();
+	}
+	
+	private static String join(String prefix, List<String> columns)
+	{
+		StringBuilder result = new StringBuilder();
+		for (String column : columns) {
+			if (result.length() > 0)
+				result.append(", ");
+			result.append(prefix).append(quoteIdentifier(column));
+		}
+		return result.toString();
+	}
+	
+	private static String toSqlList(Set<String> names)
+	{
+		StringBuilder result = new StringBuilder();
+		for (String name : names) {
+			if (result.length() > 0)
+				result.append(", ");
+			result.append(toSqlLiteral(name));
+		}
+		return result.toString();
+	}
+	
+	private static String unquote(String identifier)
+	{
+		if (identifier.length() > 1 && (identifier.startsWith("\"") && identifier.endsWith("\"")
+				|| identifier.startsWith("`") && identifier.endsWith("`")
+				|| identifier.startsWith("[") && identifier.endsWith("]")))
+			return identifier.substring(1, identifier.length() - 1);
+		return identifier;
+	}
+	
+	private static QueryResult check(QueryResult result)
+	{
+		if (result.getStatus() != DatasourceProvider.SQL_SUCCESS)
+			throw new IllegalStateException(result.getDb() + ": " + result.getError());
+		return result;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	public String getSource() {
+		return source;
+	}
+	public List<String> getGroupBy() {
+		return groupBy;
+	}
+	public List<Aggregate> getAggregates() {
+		return aggregates;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2014-2018, Plexteq OÜ
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.plexteq.easysqlite.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuild of a table with new definition. Rows are copied into shadow
+ * table with their rowids, columns of new table are computed by SQL
+ * expressions over columns of the old one. Indexes and triggers of the
+ * old table are dropped with it, they have to be recreated by statements
+ * executed after the swap
+ */
+public class TableRebuild
+{
+	private final String table;
+	
+	/**
+	 * Column definitions and constraints of new table, the part
+	 * of CREATE TABLE statement inside parentheses
+	 */
+	private final String definition;
+	
+	private final Map<String, String> columns = new LinkedHashMap<String, String>();
+	private final List<String> statements = new ArrayList<String>();
+	
+	public TableRebuild(String table, String definition) {
+		this.table = table;
+		this.definition = definition;
+	}
+	
+	/**
+	 * Sets column of new table computed by expression over old
+	 * table row, e.g. mapColumn("full_name", "first || ' ' || last").
+	 * Column declared as INTEGER PRIMARY KEY has to be mapped to rowid
+	 */
+	public void mapColumn(String column, String expression) {
+		columns.put(column, expression);
+	}
+	
+	/**
+	 * Copies column of the same name
+	 */
+	public void copyColumn(String column) {
+		mapColumn(column, DatabaseHelper.quoteIdentifier(column));
+	}
+	
+	/**
+	 * Adds statement executed in the swap transaction, after new
+	 * table got the name of the old one and indexes and triggers
+	 * of the old table have been recreated on it. Indexes and
+	 * triggers not valid for new table have to be dropped by
+	 * a statement of the migration
+	 */
+	public void addStatementAfterSwap(String sql) {
+		statements.add(sql);
+	}
+	
+	public String getTable() {
+		return table;
+	}
+	
+	public String getDefinition() {
+		return definition;
+	}
+	
+	public Map<String, String> getColumns() {
+		return Collections.unmodifiableMap(columns);
+	}
+	
+	public List<String> getStatementsAfterSwap() {
+		return Collections.unmodifiableList(statements);
+	}
+}